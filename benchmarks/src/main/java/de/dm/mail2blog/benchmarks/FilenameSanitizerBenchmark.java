@@ -0,0 +1,49 @@
+package de.dm.mail2blog.benchmarks;
+
+import de.dm.mail2blog.base.FileTypeBucket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Set;
+
+/**
+ * Compares FileTypeBucket.saneFilename() with the former implementation based on String.replaceAll().
+ */
+@State(Scope.Benchmark)
+public class FilenameSanitizerBenchmark {
+    @Param({"report.pdf", "Scan 2020-01-01 (1).jpeg", "Gr\u00fc\u00dfe aus M\u00fcnchen.exe"})
+    public String filename;
+
+    @Param({"image/jpeg", "application/pdf"})
+    public String mimeType;
+
+    private FileTypeBucket fileTypeBucket;
+
+    @Setup
+    public void setUp() {
+        fileTypeBucket = FileTypeBucket.defaultBucket();
+    }
+
+    @Benchmark
+    public String saneFilename() {
+        return fileTypeBucket.saneFilename(filename, mimeType);
+    }
+
+    @Benchmark
+    public String saneFilenameWithRegexp() {
+        String result = filename.replaceAll("[^a-zA-Z0-9.\\-_]", "_");
+
+        Set<String> validExtensions = fileTypeBucket.getExtensions(mimeType);
+        if (!validExtensions.isEmpty()) {
+            int index = result.lastIndexOf('.');
+            if (index <= 0 || index >= result.length() - 1 || !validExtensions.contains(result.substring(index + 1).toLowerCase())) {
+                result += "." + validExtensions.iterator().next();
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,48 @@
+package de.dm.mail2blog.benchmarks;
+
+import de.dm.mail2blog.base.HtmlFilterFactory;
+import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.owasp.html.PolicyFactory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures building the html filter and sanitizing html with it.
+ */
+@State(Scope.Benchmark)
+public class HtmlFilterBenchmark {
+    @Param({"1", "10", "100"})
+    public int copies;
+
+    private Mail2BlogBaseConfiguration config;
+    private PolicyFactory policyFactory;
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception {
+        config = Mail2BlogBaseConfiguration.builder().build();
+        policyFactory = HtmlFilterFactory.makeHtmlFilter(config);
+
+        String table = new String(MailCorpus.fixture("sample-table.html"), StandardCharsets.UTF_8);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < copies; i++) {
+            builder.append(table);
+        }
+        html = builder.toString();
+    }
+
+    @Benchmark
+    public PolicyFactory makeHtmlFilter() {
+        return HtmlFilterFactory.makeHtmlFilter(config);
+    }
+
+    @Benchmark
+    public String sanitize() {
+        return policyFactory.sanitize(html);
+    }
+}
@@ -0,0 +1,106 @@
+package de.dm.mail2blog.benchmarks;
+
+import com.google.common.io.ByteStreams;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * The mails used by the benchmarks.
+ * Mails are kept as raw bytes, so that every benchmark invocation parses a fresh message.
+ */
+public abstract class MailCorpus {
+    private static final Session SESSION = Session.getInstance(System.getProperties());
+
+    /**
+     * Read a fixture (a mail from the unit tests) from the classpath.
+     */
+    public static byte[] fixture(String name) throws IOException {
+        try (InputStream is = MailCorpus.class.getClassLoader().getResourceAsStream(name)) {
+            if (is == null) {
+                throw new IOException("fixture not found: " + name);
+            }
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    /**
+     * Generate a mail with a html and text alternative of the given size, attachments and recipients.
+     */
+    public static byte[] synthetic(int bodySize, int attachmentCount, int recipientCount)
+    throws MessagingException, IOException
+    {
+        Random random = new Random(bodySize * 31L + attachmentCount * 17L + recipientCount);
+        String text = text(random, bodySize);
+
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(text, "utf-8");
+        MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setContent("<html><body><p>" + text.replace("\n", "</p>\n<p>") + "</p></body></html>", "text/html; charset=utf-8");
+
+        MimeMultipart alternative = new MimeMultipart("alternative", textPart, htmlPart);
+        MimeBodyPart alternativePart = new MimeBodyPart();
+        alternativePart.setContent(alternative);
+
+        MimeMultipart mixed = new MimeMultipart("mixed", alternativePart);
+        for (int i = 0; i < attachmentCount; i++) {
+            byte[] data = new byte[bodySize];
+            random.nextBytes(data);
+            MimeBodyPart attachment = new MimeBodyPart();
+            attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/pdf")));
+            attachment.setFileName("attachment-" + i + ".pdf");
+            mixed.addBodyPart(attachment);
+        }
+
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress("alice@example.org"));
+        message.setRecipients(Message.RecipientType.TO, recipients(recipientCount));
+        message.setSubject("Synthetic mail with " + bodySize + " bytes and " + attachmentCount + " attachments");
+        message.setContent(mixed);
+        message.saveChanges();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeTo(output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Generate recipients that are distributed over a few domains.
+     */
+    public static InternetAddress[] recipients(int count) throws MessagingException {
+        InternetAddress[] result = new InternetAddress[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new InternetAddress("user" + i + "@team" + (i % 7) + ".example.org");
+        }
+        return result;
+    }
+
+    /**
+     * Parse a mail from its raw bytes.
+     */
+    public static MimeMessage parse(byte[] mail) throws MessagingException {
+        return new MimeMessage(SESSION, new ByteArrayInputStream(mail));
+    }
+
+    private static String text(Random random, int size) {
+        String[] words = new String[]{"mail", "blog", "confluence", "space", "rule", "<tag>", "&", "Gr\u00fc\u00dfe", "attachment"};
+        StringBuilder result = new StringBuilder(size + 16);
+        while (result.length() < size) {
+            result.append(words[random.nextInt(words.length)]);
+            result.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return result.toString();
+    }
+}
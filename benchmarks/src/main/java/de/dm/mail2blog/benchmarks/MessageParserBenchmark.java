@@ -0,0 +1,76 @@
+package de.dm.mail2blog.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
+import de.dm.mail2blog.base.MailPartData;
+import de.dm.mail2blog.base.MessageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.InputStream;
+
+/**
+ * Measures MessageParser.getContent() including the parsing of the raw mail and reading all parts.
+ */
+public class MessageParserBenchmark {
+    @State(Scope.Benchmark)
+    public static class FixtureState {
+        @Param({"exampleMail.eml", "mailbox/Test.eml", "mailbox/Test2.eml", "mailbox/Hello.eml"})
+        public String fixture;
+
+        byte[] mail;
+        Mail2BlogBaseConfiguration config;
+
+        @Setup
+        public void setUp() throws Exception {
+            mail = MailCorpus.fixture(fixture);
+            config = Mail2BlogBaseConfiguration.builder().build();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SyntheticState {
+        @Param({"1000", "100000", "1000000"})
+        public int bodySize;
+
+        @Param({"0", "10"})
+        public int attachmentCount;
+
+        byte[] mail;
+        Mail2BlogBaseConfiguration config;
+
+        @Setup
+        public void setUp() throws Exception {
+            mail = MailCorpus.synthetic(bodySize, attachmentCount, 1);
+            config = Mail2BlogBaseConfiguration.builder().build();
+        }
+    }
+
+    @Benchmark
+    public void fixture(FixtureState state, Blackhole blackhole) throws Exception {
+        parse(state.mail, state.config, blackhole);
+    }
+
+    @Benchmark
+    public void synthetic(SyntheticState state, Blackhole blackhole) throws Exception {
+        parse(state.mail, state.config, blackhole);
+    }
+
+    private static void parse(byte[] mail, Mail2BlogBaseConfiguration config, Blackhole blackhole) throws Exception {
+        MessageParser parser = new MessageParser(MailCorpus.parse(mail), config);
+        for (MailPartData part : parser.getContent()) {
+            if (part.getAttachementData() == null) {
+                blackhole.consume(part.getHtml());
+            } else {
+                try (InputStream stream = part.getStream()) {
+                    blackhole.consume(ByteStreams.exhaust(stream));
+                }
+            }
+            part.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.dm.mail2blog.benchmarks;
+
+import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
+import de.dm.mail2blog.base.SpaceExtractor;
+import de.dm.mail2blog.base.SpaceInfo;
+import de.dm.mail2blog.base.SpaceRule;
+import de.dm.mail2blog.base.SpaceRuleActions;
+import de.dm.mail2blog.base.SpaceRuleFields;
+import de.dm.mail2blog.base.SpaceRuleOperators;
+import de.dm.mail2blog.base.SpaceRuleSpaces;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.List;
+
+/**
+ * Measures SpaceExtractor.getSpaces() for different numbers of recipients and rules.
+ */
+@State(Scope.Benchmark)
+public class SpaceExtractorBenchmark {
+    @Param({"1", "10", "100"})
+    public int recipientCount;
+
+    @Param({"10", "100", "1000"})
+    public int ruleCount;
+
+    @Param({"false", "true"})
+    public boolean linearRegexpEngine;
+
+    private Mail2BlogBaseConfiguration config;
+    private MimeMessage message;
+    private SpaceExtractor spaceExtractor;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Mix of the rule types, most of the rules don't match.
+        String[] operators = new String[]{
+            SpaceRuleOperators.Is, SpaceRuleOperators.StartsWith, SpaceRuleOperators.EndsWith,
+            SpaceRuleOperators.Contains, SpaceRuleOperators.Regexp,
+        };
+        SpaceRule[] rules = new SpaceRule[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            String operator = operators[i % operators.length];
+            String value;
+            switch (operator) {
+                case SpaceRuleOperators.Is: value = "user" + i + "@team" + (i % 7) + ".example.org"; break;
+                case SpaceRuleOperators.StartsWith: value = "user" + i + "@"; break;
+                case SpaceRuleOperators.EndsWith: value = "@team" + i + ".example.org"; break;
+                case SpaceRuleOperators.Contains: value = "team" + i + "."; break;
+                default: value = "^user" + i + "@team([0-9]+)\\.example\\.org$"; break;
+            }
+
+            rules[i] = SpaceRule.builder()
+                .field(SpaceRuleFields.ToCC)
+                .operator(operator)
+                .value(value)
+                .action(SpaceRuleActions.COPY)
+                .space(SpaceRuleOperators.Regexp.equals(operator) ? SpaceRuleSpaces.CapturingGroup1 : "space" + i)
+                .build();
+        }
+
+        config = Mail2BlogBaseConfiguration.builder()
+            .defaultSpace("default")
+            .spaceRules(rules)
+            .linearRegexpEngine(linearRegexpEngine)
+            .build();
+
+        message = MailCorpus.parse(MailCorpus.fixture("exampleMail.eml"));
+        message.setFrom(new InternetAddress("alice@example.org"));
+        message.setRecipients(Message.RecipientType.TO, MailCorpus.recipients(recipientCount));
+
+        spaceExtractor = new SpaceExtractor(spaceKey -> true);
+    }
+
+    @Benchmark
+    public List<SpaceInfo> getSpaces() throws Exception {
+        return spaceExtractor.getSpaces(config, message);
+    }
+}
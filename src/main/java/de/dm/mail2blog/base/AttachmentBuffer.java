@@ -0,0 +1,168 @@
+package de.dm.mail2blog.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Holds the bytes of an attachment.
+ *
+ * Small attachments are kept in memory. Once more bytes than the threshold are written,
+ * the data is spilled to a temporary file. The file is deleted when the buffer
+ * or a stream opened on it is closed.
+ */
+class AttachmentBuffer extends OutputStream {
+    // Spill to disk after this many bytes, -1 to never spill.
+    private final long threshold;
+
+    // Directory for temporary files, null for the default temp directory.
+    private final File directory;
+
+    private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private File file = null;
+    private OutputStream fileOutput = null;
+    private long size = 0;
+
+    AttachmentBuffer(long threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (fileOutput == null && threshold >= 0 && size + length > threshold) {
+            spill();
+        }
+
+        if (fileOutput != null) {
+            fileOutput.write(bytes, offset, length);
+        } else {
+            memory.write(bytes, offset, length);
+        }
+
+        size += length;
+    }
+
+    /**
+     * Move the data written so far into a temporary file.
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile("mail2blog-", ".attachment", directory);
+        fileOutput = new FileOutputStream(file);
+        memory.writeTo(fileOutput);
+        memory = null;
+    }
+
+    /**
+     * Get the number of bytes written.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Check if the data was spilled to a temporary file.
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Open a stream over the data written so far.
+     * Data in memory isn't copied. Closing a stream over a temporary file deletes the file.
+     */
+    InputStream openStream() throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(memory.buffer(), 0, memory.size());
+        }
+
+        fileOutput.flush();
+        return new FilterInputStream(new FileInputStream(file)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                AttachmentBuffer.this.close();
+            }
+        };
+    }
+
+    /**
+     * Write the data written so far to the given output, without copying data in memory.
+     *
+     * @return the number of bytes written.
+     */
+    long transferTo(OutputStream output) throws IOException {
+        if (file == null) {
+            output.write(memory.buffer(), 0, memory.size());
+            return memory.size();
+        }
+
+        fileOutput.flush();
+        try (InputStream input = new FileInputStream(file)) {
+            return ByteCopier.copy(input, output);
+        }
+    }
+
+    /**
+     * Write the data written so far to the given channel.
+     * Temporary files are transferred with FileChannel.transferTo(), which lets the OS copy the data.
+     *
+     * @return the number of bytes written.
+     */
+    long transferTo(WritableByteChannel output) throws IOException {
+        if (file == null) {
+            ByteCopier.write(ByteBuffer.wrap(memory.buffer(), 0, memory.size()), output);
+            return memory.size();
+        }
+
+        fileOutput.flush();
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                position += channel.transferTo(position, size - position, output);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Release the data and delete the temporary file.
+     */
+    @Override
+    public void close() throws IOException {
+        memory = null;
+
+        if (fileOutput != null) {
+            fileOutput.close();
+        }
+
+        if (file != null && file.exists() && !file.delete()) {
+            throw new IOException("failed to delete temporary file " + file);
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that gives access to its buffer, to avoid the copy of toByteArray().
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
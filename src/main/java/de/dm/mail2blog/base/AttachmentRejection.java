@@ -0,0 +1,16 @@
+package de.dm.mail2blog.base;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * An attachment of a mail that was not extracted, see MessageParser.getRejections().
+ */
+@Data
+@Builder
+public class AttachmentRejection {
+    private String filename; // As given in the mail, null if there is none.
+    private String mediaType;
+    private long declaredSize; // The decoded size estimated from the mail, -1 if unknown.
+    private String reason; // AttachmentRejectionReasons
+}
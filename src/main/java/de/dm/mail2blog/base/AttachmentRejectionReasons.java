@@ -0,0 +1,11 @@
+package de.dm.mail2blog.base;
+
+// Reasons why an attachment was rejected.
+public abstract class AttachmentRejectionReasons {
+    // The attachment is larger than maxAllowedAttachmentSizeInBytes.
+    public static final String TooLarge = "too_large";
+    // The mime type isn't allowed by the FileTypeBucket.
+    public static final String ForbiddenType = "forbidden_type";
+    // The mail has more than maxAllowedNumberOfAttachments attachments.
+    public static final String TooMany = "too_many";
+}
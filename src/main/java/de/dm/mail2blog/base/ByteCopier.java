@@ -0,0 +1,72 @@
+package de.dm.mail2blog.base;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies bytes between streams and channels with a buffer that is reused by all copies of a thread.
+ */
+final class ByteCopier {
+    static final int BUFFER_SIZE = 8192;
+
+    // Copy buffer, reused for all copies made by a thread.
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private ByteCopier() {}
+
+    /**
+     * Get the copy buffer of the current thread.
+     * The buffer must not be used by the caller while it calls one of the copy methods.
+     */
+    static byte[] buffer() {
+        return BUFFER.get();
+    }
+
+    /**
+     * Copy all remaining bytes of the input to the output.
+     *
+     * @return the number of bytes copied.
+     */
+    static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = BUFFER.get();
+        long count = 0;
+
+        int bytesRead;
+        while ((bytesRead = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, bytesRead);
+            count += bytesRead;
+        }
+
+        return count;
+    }
+
+    /**
+     * Copy all remaining bytes of the input to the channel.
+     *
+     * @return the number of bytes copied.
+     */
+    static long copy(InputStream input, WritableByteChannel output) throws IOException {
+        byte[] buffer = BUFFER.get();
+        long count = 0;
+
+        int bytesRead;
+        while ((bytesRead = input.read(buffer)) >= 0) {
+            write(ByteBuffer.wrap(buffer, 0, bytesRead), output);
+            count += bytesRead;
+        }
+
+        return count;
+    }
+
+    /**
+     * Write all remaining bytes of the buffer to the channel.
+     */
+    static void write(ByteBuffer buffer, WritableByteChannel output) throws IOException {
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package de.dm.mail2blog.base;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the answers of another ISpaceKeyValidator.
+ *
+ * Existing and missing spaces are kept for different times, because a new space should be found
+ * soon, while existing spaces rarely disappear. Entries that are used shortly before they expire
+ * are refreshed in the background, so that frequently used spaces never wait for the delegate.
+ * Concurrent lookups of the same missing key share one call to the delegate.
+ * Errors of the delegate aren't cached.
+ */
+@Slf4j
+public class CachingSpaceKeyValidator implements ISpaceKeyValidator {
+    // The number of threads of the default refresh pool.
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+
+    private final ISpaceKeyValidator delegate;
+    private final long positiveTtlInNanos;
+    private final long negativeTtlInNanos;
+    private final double refreshAheadFactor;
+    private final Executor refreshExecutor;
+    private final Ticker ticker;
+    private final Cache<String, Entry> cache;
+
+    // Keys that are refreshed at the moment.
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    // Answers that are loaded from the delegate at the moment, shared by all threads that need them.
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadExceptionCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param delegate The validator to ask if an answer isn't cached.
+     * @param maximumSize The maximum number of cached space keys.
+     * @param positiveTtlInMilliseconds How long to remember that a space exists.
+     * @param negativeTtlInMilliseconds How long to remember that a space doesn't exist.
+     * @param refreshAheadFactor Refresh entries in the background when they're used after this fraction
+     *                           of their ttl has passed. Use 1 or more to disable refresh-ahead.
+     * @param refreshExecutor Runs the background refreshes, null to use a pool of the validator.
+     * @param ticker The time source, for tests.
+     */
+    @Builder
+    public CachingSpaceKeyValidator(
+        @NonNull ISpaceKeyValidator delegate,
+        long maximumSize,
+        long positiveTtlInMilliseconds,
+        long negativeTtlInMilliseconds,
+        double refreshAheadFactor,
+        Executor refreshExecutor,
+        @NonNull Ticker ticker
+    ) {
+        this.delegate = delegate;
+        this.positiveTtlInNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlInMilliseconds);
+        this.negativeTtlInNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlInMilliseconds);
+        this.refreshAheadFactor = refreshAheadFactor;
+        this.refreshExecutor = (refreshExecutor != null) ? refreshExecutor : newDefaultRefreshExecutor();
+        this.ticker = ticker;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .removalListener((RemovalNotification<String, Entry> notification) -> {
+                if (notification.wasEvicted()) {
+                    evictionCount.increment();
+                }
+            })
+            .build();
+    }
+
+    @Override
+    public boolean spaceExists(String spaceKey) {
+        if (spaceKey == null) {
+            return delegate.spaceExists(null);
+        }
+
+        Entry entry = getValidEntry(spaceKey, ticker.read());
+        if (entry != null) {
+            hitCount.increment();
+            return entry.exists;
+        }
+
+        missCount.increment();
+        return load(spaceKey).exists;
+    }
+
+    /**
+     * Answer cached space keys from the cache and ask the delegate for all others with one call.
+     * Keys that are loaded by another thread at the moment aren't asked for again, but waited for.
+     */
+    @Override
+    public Map<String, Boolean> spacesExist(Collection<String> spaceKeys) {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        List<String> missing = new ArrayList<String>();
+
+        long now = ticker.read();
+        for (String spaceKey : spaceKeys) {
+            Entry entry = (spaceKey == null) ? null : getValidEntry(spaceKey, now);
+            if (entry != null) {
+                hitCount.increment();
+                result.put(spaceKey, entry.exists);
+            } else if (!result.containsKey(spaceKey)) {
+                missCount.increment();
+                result.put(spaceKey, null);
+                missing.add(spaceKey);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        // Split the missing keys into the ones loaded by this call and the ones another thread loads.
+        List<String> toLoad = new ArrayList<String>();
+        Map<String, CompletableFuture<Entry>> owned = new HashMap<String, CompletableFuture<Entry>>();
+        Map<String, CompletableFuture<Entry>> shared = new LinkedHashMap<String, CompletableFuture<Entry>>();
+        for (String spaceKey : missing) {
+            if (spaceKey == null) {
+                toLoad.add(null);
+                continue;
+            }
+
+            CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+            CompletableFuture<Entry> existing = loading.putIfAbsent(spaceKey, future);
+            if (existing == null) {
+                owned.put(spaceKey, future);
+                toLoad.add(spaceKey);
+            } else {
+                shared.put(spaceKey, existing);
+            }
+        }
+
+        if (!toLoad.isEmpty()) {
+            long start = ticker.read();
+            try {
+                Map<String, Boolean> loaded = delegate.spacesExist(toLoad);
+                long loadedAt = ticker.read();
+                for (String spaceKey : toLoad) {
+                    boolean exists = Boolean.TRUE.equals(loaded.get(spaceKey));
+                    if (spaceKey != null) {
+                        Entry entry = new Entry(exists, loadedAt);
+                        cache.put(spaceKey, entry);
+                        owned.get(spaceKey).complete(entry);
+                    }
+                    result.put(spaceKey, exists);
+                }
+                loadSuccessCount.add(toLoad.size());
+            } catch (RuntimeException | Error e) {
+                loadExceptionCount.increment();
+                for (CompletableFuture<Entry> future : owned.values()) {
+                    future.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                totalLoadTime.add(ticker.read() - start);
+                owned.forEach(loading::remove);
+            }
+        }
+
+        for (Map.Entry<String, CompletableFuture<Entry>> load : shared.entrySet()) {
+            result.put(load.getKey(), await(load.getValue()).exists);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the statistics of the cache. Refreshes count as loads, but not as misses.
+     */
+    public CacheStats stats() {
+        return new CacheStats(
+            hitCount.sum(),
+            missCount.sum(),
+            loadSuccessCount.sum(),
+            loadExceptionCount.sum(),
+            totalLoadTime.sum(),
+            evictionCount.sum()
+        );
+    }
+
+    /**
+     * Forget all cached answers, e.g. after a space was created.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Get the cached answer if it hasn't expired yet. Starts a refresh, if it expires soon.
+     */
+    private Entry getValidEntry(String spaceKey, long now) {
+        Entry entry = cache.getIfPresent(spaceKey);
+        if (entry == null) {
+            return null;
+        }
+
+        long age = now - entry.loadedAt;
+        long ttl = entry.exists ? positiveTtlInNanos : negativeTtlInNanos;
+        if (age >= ttl) {
+            return null;
+        }
+
+        if (age >= ttl * refreshAheadFactor) {
+            refresh(spaceKey);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Ask the delegate and cache the answer.
+     * If another thread asks the delegate for the same key at the moment, wait for its answer instead.
+     */
+    private Entry load(String spaceKey) {
+        CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> existing = loading.putIfAbsent(spaceKey, future);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        long start = ticker.read();
+        try {
+            Entry entry = new Entry(delegate.spaceExists(spaceKey), ticker.read());
+            cache.put(spaceKey, entry);
+            loadSuccessCount.increment();
+            future.complete(entry);
+            return entry;
+        } catch (RuntimeException | Error e) {
+            loadExceptionCount.increment();
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            totalLoadTime.add(ticker.read() - start);
+            loading.remove(spaceKey, future);
+        }
+    }
+
+    /**
+     * Wait for a load of another thread and rethrow its error, if it failed.
+     */
+    private static Entry await(CompletableFuture<Entry> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reload the answer in the background, unless a refresh is already running.
+     * If the refresh fails, the old answer is kept until it expires.
+     */
+    private void refresh(String spaceKey) {
+        if (!refreshing.add(spaceKey)) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load(spaceKey);
+                } catch (RuntimeException e) {
+                    log.debug("Mail2Blog: failed to refresh space key " + spaceKey, e);
+                } finally {
+                    refreshing.remove(spaceKey);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(spaceKey);
+            log.debug("Mail2Blog: failed to schedule refresh of space key " + spaceKey, e);
+        }
+    }
+
+    /**
+     * Create a small pool of daemon threads for the refreshes, which end when they're idle.
+     * Refreshes block on the delegate, so they must not take threads from a shared pool like the common pool.
+     */
+    private static Executor newDefaultRefreshExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            DEFAULT_REFRESH_THREADS, DEFAULT_REFRESH_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new VirtualThreads.DaemonThreadFactory()
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Builder class with default values.
+    public static class CachingSpaceKeyValidatorBuilder {
+        private long maximumSize = 1000;
+        private long positiveTtlInMilliseconds = 10 * 60 * 1000; // 10 minutes
+        private long negativeTtlInMilliseconds = 60 * 1000; // 1 minute
+        private double refreshAheadFactor = 0.8;
+        private Executor refreshExecutor = null;
+        private Ticker ticker = Ticker.systemTicker();
+    }
+
+    /**
+     * A cached answer and the time it was loaded.
+     */
+    private static class Entry {
+        final boolean exists;
+        final long loadedAt;
+
+        Entry(boolean exists, long loadedAt) {
+            this.exists = exists;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
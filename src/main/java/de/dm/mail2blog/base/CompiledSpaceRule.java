@@ -0,0 +1,98 @@
+package de.dm.mail2blog.base;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A SpaceRule together with its precompiled regexp.
+ * Compiled rules are immutable and can be shared between threads.
+ */
+public class CompiledSpaceRule {
+    // Regexps of rules that are compiled on the fly (LRU).
+    private static final Cache<String, Pattern> PATTERN_CACHE = CacheBuilder.newBuilder()
+        .maximumSize(1000)
+        .build();
+
+    @Getter private final SpaceRule rule;
+
+    // The compiled regexp or null if the rule isn't a regexp rule.
+    @Getter private final Pattern pattern;
+
+    // The regexp compiled for the linear engine or null if the rule isn't a regexp rule,
+    // the linear engine isn't used or the regexp isn't supported by it.
+    @Getter private final LinearRegexp linearRegexp;
+
+    // The error if the regexp of the rule doesn't compile.
+    @Getter private final PatternSyntaxException patternError;
+
+    private CompiledSpaceRule(SpaceRule rule, Pattern pattern, LinearRegexp linearRegexp, PatternSyntaxException patternError) {
+        this.rule = rule;
+        this.pattern = pattern;
+        this.linearRegexp = linearRegexp;
+        this.patternError = patternError;
+    }
+
+    /**
+     * Compile the given rule for the guarded engine.
+     *
+     * @see CompiledSpaceRule#of(SpaceRule, boolean)
+     */
+    public static CompiledSpaceRule of(@NonNull SpaceRule rule) {
+        return of(rule, false);
+    }
+
+    /**
+     * Compile the given rule. Regexps are looked up in and added to a shared LRU cache.
+     * Invalid regexps don't throw, instead the error is kept in the compiled rule.
+     *
+     * @param linearRegexpEngine Whether to compile the regexp for the linear engine too, if it's supported.
+     */
+    public static CompiledSpaceRule of(@NonNull SpaceRule rule, boolean linearRegexpEngine) {
+        if (!SpaceRuleOperators.Regexp.equals(rule.getOperator()) || rule.getValue() == null) {
+            return new CompiledSpaceRule(rule, null, null, null);
+        }
+
+        Pattern pattern = PATTERN_CACHE.getIfPresent(rule.getValue());
+        if (pattern == null) {
+            try {
+                pattern = Pattern.compile(rule.getValue(), Pattern.CASE_INSENSITIVE);
+            } catch (PatternSyntaxException e) {
+                return new CompiledSpaceRule(rule, null, null, e);
+            }
+            PATTERN_CACHE.put(rule.getValue(), pattern);
+        }
+
+        LinearRegexp linearRegexp = linearRegexpEngine ? LinearRegexp.compile(rule.getValue()) : null;
+
+        return new CompiledSpaceRule(rule, pattern, linearRegexp, null);
+    }
+
+    /**
+     * Compile all given rules.
+     *
+     * @param linearRegexpEngine Whether to compile regexps for the linear engine too, if they're supported.
+     */
+    public static CompiledSpaceRule[] compile(@NonNull SpaceRule[] rules, boolean linearRegexpEngine) {
+        CompiledSpaceRule[] result = new CompiledSpaceRule[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            result[i] = CompiledSpaceRule.of(rules[i], linearRegexpEngine);
+        }
+
+        return result;
+    }
+
+    /**
+     * Check if the space key is extracted from the match of the regexp.
+     */
+    public boolean capturesSpaceKey() {
+        return SpaceRuleOperators.Regexp.equals(rule.getOperator()) && (
+            SpaceRuleSpaces.CapturingGroup0.equals(rule.getSpace())
+            || SpaceRuleSpaces.CapturingGroup1.equals(rule.getSpace())
+        );
+    }
+}
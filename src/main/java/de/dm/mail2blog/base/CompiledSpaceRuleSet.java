@@ -0,0 +1,369 @@
+package de.dm.mail2blog.base;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All space rules of a configuration in compiled form.
+ *
+ * Rules with the operators Is, StartsWith, EndsWith and Contains are gathered per field into one index,
+ * so that a value is matched against all of them at once:
+ * Is uses a hash lookup, StartsWith and EndsWith use tries (EndsWith on the reversed strings)
+ * and Contains uses an Aho-Corasick automaton.
+ * Comparison is case insensitive like in StringUtils.*IgnoreCase.
+ *
+ * Regexp rules aren't indexed and still have to be evaluated one by one.
+ */
+public class CompiledSpaceRuleSet {
+    // The fields for which an index is built. ToCC rules are added to the TO and the CC index.
+    static final String[] INDEXED_FIELDS = new String[]{
+        SpaceRuleFields.FROM,
+        SpaceRuleFields.TO,
+        SpaceRuleFields.CC,
+        SpaceRuleFields.SUBJECT,
+    };
+
+    // The compiled rules in the order of the configuration.
+    @Getter private final CompiledSpaceRule[] rules;
+
+    // Cost accounting and quarantine state of the regexp rules, null for all other rules.
+    private final SpaceRuleStats[] stats;
+
+    // Marks the rules that are evaluated via an index.
+    private final BitSet indexedRules = new BitSet();
+
+    // Index of literal rules per field.
+    private final Map<String, LiteralIndex> indexes = new HashMap<String, LiteralIndex>();
+
+    private CompiledSpaceRuleSet(CompiledSpaceRule[] rules) {
+        this.rules = rules;
+        this.stats = new SpaceRuleStats[rules.length];
+
+        for (String field : INDEXED_FIELDS) {
+            indexes.put(field, new LiteralIndex());
+        }
+
+        for (int i = 0; i < rules.length; i++) {
+            SpaceRule rule = rules[i].getRule();
+            if (SpaceRuleOperators.Regexp.equals(rule.getOperator())) {
+                stats[i] = new SpaceRuleStats(rule);
+            }
+
+            if (!isLiteralOperator(rule.getOperator())) {
+                continue;
+            }
+
+            indexedRules.set(i);
+
+            // A rule without value or with an unknown field never matches.
+            if (rule.getValue() == null) {
+                continue;
+            }
+
+            for (String field : fieldsOf(rule.getField())) {
+                indexes.get(field).add(i, rule.getOperator(), rule.getValue());
+            }
+        }
+
+        for (LiteralIndex index : indexes.values()) {
+            index.build();
+        }
+    }
+
+    /**
+     * Compile the given rules.
+     *
+     * @param linearRegexpEngine Whether to compile regexps for the linear engine too, if they're supported.
+     */
+    public static CompiledSpaceRuleSet compile(@NonNull SpaceRule[] rules, boolean linearRegexpEngine) {
+        return new CompiledSpaceRuleSet(CompiledSpaceRule.compile(rules, linearRegexpEngine));
+    }
+
+    /**
+     * Check if the rule with the given index is evaluated via matchLiterals() instead of one by one.
+     */
+    public boolean isIndexed(int ruleIndex) {
+        return indexedRules.get(ruleIndex);
+    }
+
+    /**
+     * Get the stats of the rule with the given index, null if the rule isn't a regexp rule.
+     */
+    public SpaceRuleStats getStats(int ruleIndex) {
+        return stats[ruleIndex];
+    }
+
+    /**
+     * Get the stats of all regexp rules in the order of the configuration.
+     */
+    public List<SpaceRuleStats> getRegexpRuleStats() {
+        List<SpaceRuleStats> result = new ArrayList<SpaceRuleStats>();
+        for (SpaceRuleStats ruleStats : stats) {
+            if (ruleStats != null) {
+                result.add(ruleStats);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check if there are indexed rules for the given field.
+     *
+     * @param field One of FROM, TO, CC or SUBJECT from SpaceRuleFields.
+     */
+    public boolean hasLiteralRules(String field) {
+        LiteralIndex index = indexes.get(field);
+        return index != null && !index.isEmpty();
+    }
+
+    /**
+     * Match the values of a field against all indexed rules.
+     *
+     * @param field One of FROM, TO, CC or SUBJECT from SpaceRuleFields.
+     * @param values The values of the field in the message.
+     * @param matches For every rule index the list of values that matched the rule.
+     *                Values are appended in the order they're given. Lists are created as needed.
+     */
+    public void matchLiterals(String field, List<String> values, List<List<String>> matches) {
+        List<String> foldedValues = new ArrayList<String>(values.size());
+        for (String value : values) {
+            foldedValues.add(fold(value));
+        }
+
+        matchLiterals(field, values, foldedValues, matches);
+    }
+
+    /**
+     * Match the values of a field against all indexed rules, with values that are already case folded.
+     *
+     * @param foldedValues The values folded like RoutingContext.getFoldedValues() does.
+     * @see CompiledSpaceRuleSet#matchLiterals(String, List, List)
+     */
+    public void matchLiterals(String field, List<String> values, List<String> foldedValues, List<List<String>> matches) {
+        LiteralIndex index = indexes.get(field);
+        if (index == null || index.isEmpty()) {
+            return;
+        }
+
+        BitSet matched = new BitSet(rules.length);
+        for (int v = 0; v < values.size(); v++) {
+            matched.clear();
+            index.match(foldedValues.get(v), matched);
+
+            for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+                if (matches.get(i) == null) {
+                    matches.set(i, new ArrayList<String>());
+                }
+                matches.get(i).add(values.get(v));
+            }
+        }
+    }
+
+    /**
+     * Get the indexed fields that provide the values for a field of a rule.
+     */
+    public static String[] fieldsOf(String field) {
+        if (SpaceRuleFields.ToCC.equals(field)) {
+            return new String[]{SpaceRuleFields.TO, SpaceRuleFields.CC};
+        }
+
+        for (String indexedField : INDEXED_FIELDS) {
+            if (indexedField.equals(field)) {
+                return new String[]{indexedField};
+            }
+        }
+
+        return new String[]{};
+    }
+
+    private static boolean isLiteralOperator(String operator) {
+        return SpaceRuleOperators.Is.equals(operator)
+            || SpaceRuleOperators.StartsWith.equals(operator)
+            || SpaceRuleOperators.EndsWith.equals(operator)
+            || SpaceRuleOperators.Contains.equals(operator);
+    }
+
+    /**
+     * Fold a character the same way String.regionMatches() does when ignoring case.
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    static String fold(String s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(s.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Index over the literal rules of one field.
+     */
+    private static class LiteralIndex {
+        // Folded value -> rules (Is).
+        private final HashMap<String, List<Integer>> is = new HashMap<String, List<Integer>>();
+
+        // Trie over folded values (StartsWith).
+        private final Node prefixes = new Node();
+
+        // Trie over reversed folded values (EndsWith).
+        private final Node suffixes = new Node();
+
+        // Aho-Corasick automaton over folded values (Contains).
+        private final Node infixes = new Node();
+
+        private boolean empty = true;
+
+        void add(int ruleIndex, String operator, String value) {
+            String folded = fold(value);
+            empty = false;
+
+            if (SpaceRuleOperators.Is.equals(operator)) {
+                List<Integer> list = is.get(folded);
+                if (list == null) {
+                    list = new ArrayList<Integer>(1);
+                    is.put(folded, list);
+                }
+                list.add(ruleIndex);
+            } else if (SpaceRuleOperators.StartsWith.equals(operator)) {
+                prefixes.insert(folded, false).addRule(ruleIndex);
+            } else if (SpaceRuleOperators.EndsWith.equals(operator)) {
+                suffixes.insert(folded, true).addRule(ruleIndex);
+            } else if (SpaceRuleOperators.Contains.equals(operator)) {
+                infixes.insert(folded, false).addRule(ruleIndex);
+            }
+        }
+
+        /**
+         * Compute the failure and output links of the Aho-Corasick automaton.
+         */
+        void build() {
+            ArrayDeque<Node> queue = new ArrayDeque<Node>();
+            for (Node child : infixes.children.values()) {
+                child.failure = infixes;
+                queue.add(child);
+            }
+
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    char c = entry.getKey();
+                    Node child = entry.getValue();
+
+                    Node failure = node.failure;
+                    while (failure != null && !failure.children.containsKey(c)) {
+                        failure = failure.failure;
+                    }
+                    child.failure = (failure == null) ? infixes : failure.children.get(c);
+                    child.output = (child.failure.rules != null) ? child.failure : child.failure.output;
+
+                    queue.add(child);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        void match(String folded, BitSet matched) {
+
+            List<Integer> exact = is.get(folded);
+            if (exact != null) {
+                for (int ruleIndex : exact) {
+                    matched.set(ruleIndex);
+                }
+            }
+
+            // StartsWith: every node on the path of the value marks a matching prefix.
+            Node node = prefixes;
+            node.collect(matched);
+            for (int i = 0; i < folded.length() && node != null; i++) {
+                node = node.children.get(folded.charAt(i));
+                if (node != null) {
+                    node.collect(matched);
+                }
+            }
+
+            // EndsWith: same as StartsWith, but walk the value backwards.
+            node = suffixes;
+            node.collect(matched);
+            for (int i = folded.length() - 1; i >= 0 && node != null; i--) {
+                node = node.children.get(folded.charAt(i));
+                if (node != null) {
+                    node.collect(matched);
+                }
+            }
+
+            // Contains: run the Aho-Corasick automaton.
+            node = infixes;
+            node.collect(matched);
+            for (int i = 0; i < folded.length(); i++) {
+                char c = folded.charAt(i);
+                while (node != infixes && !node.children.containsKey(c)) {
+                    node = node.failure;
+                }
+                Node next = node.children.get(c);
+                node = (next != null) ? next : infixes;
+
+                for (Node output = node; output != null; output = output.output) {
+                    output.collect(matched);
+                }
+            }
+        }
+    }
+
+    /**
+     * Node of a trie or of the Aho-Corasick automaton.
+     */
+    private static class Node {
+        private final HashMap<Character, Node> children = new HashMap<Character, Node>();
+
+        // Rules whose value ends at this node, null if there are none.
+        private List<Integer> rules = null;
+
+        // Aho-Corasick: the longest proper suffix of this node that is in the trie.
+        private Node failure = null;
+
+        // Aho-Corasick: the next node on the failure path that has rules.
+        private Node output = null;
+
+        Node insert(String value, boolean reversed) {
+            Node node = this;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(reversed ? value.length() - 1 - i : i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        void addRule(int ruleIndex) {
+            if (rules == null) {
+                rules = new ArrayList<Integer>(1);
+            }
+            rules.add(ruleIndex);
+        }
+
+        void collect(BitSet matched) {
+            if (rules != null) {
+                for (int ruleIndex : rules) {
+                    matched.set(ruleIndex);
+                }
+            }
+        }
+    }
+}
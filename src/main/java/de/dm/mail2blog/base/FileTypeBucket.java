@@ -4,8 +4,12 @@ import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.Set;
@@ -15,12 +19,18 @@ import java.util.regex.Pattern;
 /**
  * Stores the allowed mime types and file extensions and supports serializing/deserializing to tab seperated CSV
  * to store the values in BANDANA and to display them in the admin UI.
+ *
+ * A bucket is immutable and can be shared between threads. Mime types and extensions are kept
+ * in the order of the CSV, the first extension of a mime type is its preferred extension.
  */
 @Slf4j
 public class FileTypeBucket {
 
-    // Map that maps mimeType to file extensions.
-    private HashMap<String, Set<String>> storage;
+    // Map that maps mimeType to file extensions, in the order of the CSV.
+    private final Map<String, Set<String>> storage;
+
+    // Map that maps an extension to the first mimeType it's listed for.
+    private final Map<String, String> mimeTypes;
 
     // Regex to extract the file extension and mime type from a CSV row.
     private static final Pattern PATTERN = Pattern.compile(
@@ -35,8 +45,17 @@ public class FileTypeBucket {
      * Private constructor to create the bucket from hashMap.
      * Use @see FileTypeBucket.fromString() to create a FileTypeBucket object.
      */
-    private FileTypeBucket(@NonNull HashMap<String, Set<String>> storage) {
-        this.storage = storage;
+    private FileTypeBucket(@NonNull LinkedHashMap<String, Set<String>> storage) {
+        HashMap<String, String> mimeTypes = new HashMap<String, String>();
+        for (Entry<String, Set<String>> entry : storage.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+            for (String extension : entry.getValue()) {
+                mimeTypes.putIfAbsent(extension, entry.getKey());
+            }
+        }
+
+        this.storage = Collections.unmodifiableMap(storage);
+        this.mimeTypes = Collections.unmodifiableMap(mimeTypes);
     }
 
     /**
@@ -51,7 +70,7 @@ public class FileTypeBucket {
     public static FileTypeBucket fromString(@NonNull String data)
     throws FileTypeBucketException
     {
-        HashMap<String, Set<String>> storage = new HashMap<String, Set<String>>();
+        LinkedHashMap<String, Set<String>> storage = new LinkedHashMap<String, Set<String>>();
         Scanner scanner = new Scanner(data);
 
         int line_nr = 1;
@@ -59,12 +78,10 @@ public class FileTypeBucket {
             String line = scanner.nextLine();
             Matcher match = PATTERN.matcher(line);
             if (match.find()) {
-                String extension = match.group(1).trim().toLowerCase();
-                String mimeType = match.group(2).trim().toLowerCase();
+                String extension = match.group(1).trim().toLowerCase(Locale.ROOT).intern();
+                String mimeType = match.group(2).trim().toLowerCase(Locale.ROOT).intern();
 
-                Set<String> extensions = storage.getOrDefault(mimeType, new HashSet<String>());
-                extensions.add(extension);
-                storage.put(mimeType, extensions);
+                storage.computeIfAbsent(mimeType, k -> new LinkedHashSet<String>()).add(extension);
             } else {
                 throw new FileTypeBucketException("syntax error in line " + line_nr + " near \"" + line + "\"");
             }
@@ -92,22 +109,24 @@ public class FileTypeBucket {
      *  Space separated CSV with the extension as the first column and the mimeType as second.
      */
     public String toString() {
-        String result = "";
+        StringBuilder result = new StringBuilder();
 
         for (Entry<String, Set<String>> entry : storage.entrySet()) {
             String mimeType = entry.getKey();
             for (String extension : entry.getValue()) {
-                result += extension + " " + mimeType + "\n";
+                result.append(extension).append(' ').append(mimeType).append('\n');
             }
         }
 
-        return result;
+        return result.toString();
     }
 
     /**
      * Removes potentially dangerous characters from given file name
      * and check that the file extension matches the given mimeType.
      * If not it appends a matching extension.
+     * File names encoded with RFC 2047 or RFC 2231 are decoded first
+     * and the result is cut to 255 characters, keeping the extension.
      *
      * Warning: If the mimeType is unknown no extension will be allowed
      * use FileTypeBucket.checkMimeType() to verify that the extension is allowed.
@@ -117,30 +136,7 @@ public class FileTypeBucket {
      * @return sanitized file name
      */
     public String saneFilename(@NonNull String filename, @NonNull String mimeType) {
-        // Replace exotic characters with _.
-        filename = filename.replaceAll("[^a-zA-Z0-9.\\-_]", "_");
-
-        // Determine if we need to append an extension,
-        // or if the filename already contains a valid one.
-        Set<String> validExtensions = storage.get(mimeType);
-        if (validExtensions != null && !validExtensions.isEmpty()) {
-            boolean appendExtension = false;
-            int index = filename.lastIndexOf('.');
-            if (index > 0 && index < (filename.length() - 1)) {
-                String extension = filename.substring(index + 1).toLowerCase();
-                if (!validExtensions.contains(extension)) {
-                    appendExtension = true;
-                }
-            } else {
-                appendExtension = true;
-            }
-
-            if (appendExtension) {
-                filename += "." + validExtensions.iterator().next();
-            }
-        }
-
-        return filename;
+        return FilenameSanitizer.sanitize(filename, getExtensions(mimeType), getPreferredExtension(mimeType));
     }
 
     /**
@@ -151,4 +147,32 @@ public class FileTypeBucket {
     public boolean checkMimeType(String mimeType) {
         return storage.containsKey(mimeType);
     }
+
+    /**
+     * Get the extension that's appended to file names of the given mime type, the first one listed for it.
+     *
+     * @return the extension or null if the mime type is unknown.
+     */
+    public String getPreferredExtension(String mimeType) {
+        Set<String> extensions = storage.get(mimeType);
+        return (extensions == null || extensions.isEmpty()) ? null : extensions.iterator().next();
+    }
+
+    /**
+     * Get the allowed extensions of a mime type in the order they're listed.
+     *
+     * @return the extensions or an empty set if the mime type is unknown.
+     */
+    public Set<String> getExtensions(String mimeType) {
+        return storage.getOrDefault(mimeType, Collections.<String>emptySet());
+    }
+
+    /**
+     * Get the mime type of a lower case extension, the first one listed if there are several.
+     *
+     * @return the mime type or null if the extension is unknown.
+     */
+    public String getMimeType(String extension) {
+        return mimeTypes.get(extension);
+    }
 }
@@ -0,0 +1,195 @@
+package de.dm.mail2blog.base;
+
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+/**
+ * Sanitizes the file names of attachments in a single pass over the name.
+ *
+ * Every code point outside of [a-zA-Z0-9.\-_] is replaced with "_". The extension is checked
+ * in the sanitized characters, so that only the resulting String is allocated.
+ */
+final class FilenameSanitizer {
+    // The maximum length of a sanitized file name, including the extension.
+    static final int MAX_LENGTH = 255;
+
+    // The ASCII characters that are kept, indexed by the character.
+    private static final boolean[] ALLOWED = buildAllowed();
+
+    // Buffer for the sanitized characters, reused for all file names sanitized by a thread.
+    // Longer names get a buffer of their own, so that a single long name doesn't grow the buffer for good.
+    private static final int BUFFER_SIZE = 1024;
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[BUFFER_SIZE]);
+
+    private FilenameSanitizer() {}
+
+    /**
+     * Sanitize a file name and make sure it ends with one of the valid extensions.
+     *
+     * @param filename The file name from the mail, it may be encoded with RFC 2047 or RFC 2231.
+     * @param validExtensions The lower case extensions that are allowed, an empty set to allow any extension.
+     * @param preferredExtension The extension to append if the name has no valid one, null if there is none.
+     */
+    static String sanitize(String filename, Set<String> validExtensions, String preferredExtension) {
+        filename = decode(filename);
+
+        int length = filename.length();
+        int capacity = length + 1 + (preferredExtension != null ? preferredExtension.length() : 0);
+        char[] buffer = (capacity <= BUFFER_SIZE) ? BUFFER.get() : new char[capacity];
+
+        // Replace exotic characters with _ and remember the last dot.
+        int size = 0;
+        int lastDot = -1;
+        for (int i = 0; i < length; ) {
+            int codePoint = filename.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (codePoint == '.') {
+                lastDot = size;
+            }
+            buffer[size++] = (codePoint < ALLOWED.length && ALLOWED[codePoint]) ? (char) codePoint : '_';
+        }
+
+        // Determine if we need to append an extension,
+        // or if the filename already contains a valid one.
+        int stem = size;
+        String extension = null;
+        if (!validExtensions.isEmpty() && preferredExtension != null) {
+            if (lastDot > 0 && lastDot < size - 1 && isValidExtension(buffer, lastDot + 1, size, validExtensions)) {
+                stem = lastDot;
+            } else {
+                extension = preferredExtension;
+            }
+        }
+
+        // Cap the length, but keep the extension.
+        int suffix = (extension != null) ? extension.length() + 1 : size - stem;
+        if (stem + suffix > MAX_LENGTH) {
+            int kept = Math.max(0, MAX_LENGTH - suffix);
+            System.arraycopy(buffer, stem, buffer, kept, size - stem);
+            size -= stem - kept;
+        }
+
+        if (extension != null) {
+            buffer[size++] = '.';
+            extension.getChars(0, extension.length(), buffer, size);
+            size += extension.length();
+        }
+
+        return new String(buffer, 0, Math.min(size, MAX_LENGTH));
+    }
+
+    /**
+     * Check case insensitively if the characters between start and end are one of the valid extensions.
+     */
+    private static boolean isValidExtension(char[] buffer, int start, int end, Set<String> validExtensions) {
+        for (String extension : validExtensions) {
+            if (extension.length() != end - start) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int i = 0; i < extension.length() && matches; i++) {
+                char c = buffer[start + i];
+                matches = ((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c) == extension.charAt(i);
+            }
+
+            if (matches) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Decode a file name encoded with RFC 2047 (=?charset?B?...?=) or RFC 2231 (charset'language'%xx...).
+     * Names that aren't encoded or can't be decoded are returned unchanged.
+     */
+    static String decode(String filename) {
+        if (filename.contains("=?")) {
+            try {
+                return MimeUtility.decodeText(filename);
+            } catch (UnsupportedEncodingException e) {
+                return filename;
+            }
+        }
+
+        int first = filename.indexOf('\'');
+        int second = (first > 0) ? filename.indexOf('\'', first + 1) : -1;
+        if (second < 0 || filename.indexOf('%', second) < 0) {
+            return filename;
+        }
+
+        String charsetName = filename.substring(0, first);
+        if (!isCharsetName(charsetName) || !Charset.isSupported(charsetName)) {
+            return filename;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(filename.length() - second);
+        for (int i = second + 1; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            if (c == '%' && i + 2 < filename.length() && hex(filename.charAt(i + 1)) >= 0 && hex(filename.charAt(i + 2)) >= 0) {
+                bytes.write(hex(filename.charAt(i + 1)) * 16 + hex(filename.charAt(i + 2)));
+                i += 2;
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else {
+                // Not a valid RFC 2231 value.
+                return filename;
+            }
+        }
+
+        return new String(bytes.toByteArray(), Charset.forName(charsetName));
+    }
+
+    /**
+     * Check if the name is a legal charset name (see java.nio.charset.Charset), so that looking it up can't throw.
+     * It must start with a letter or digit.
+     */
+    private static boolean isCharsetName(String name) {
+        if (name.isEmpty() || !Character.isLetterOrDigit(name.charAt(0))) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c < ALLOWED.length && ALLOWED[c]) && c != ':' && c != '+') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean[] buildAllowed() {
+        boolean[] allowed = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            allowed[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            allowed[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            allowed[c] = true;
+        }
+        allowed['.'] = true;
+        allowed['-'] = true;
+        allowed['_'] = true;
+        return allowed;
+    }
+}
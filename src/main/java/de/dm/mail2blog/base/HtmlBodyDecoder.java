@@ -0,0 +1,117 @@
+package de.dm.mail2blog.base;
+
+import org.apache.commons.text.translate.EntityArrays;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the body of a content part into html in a single pass.
+ *
+ * Every line is terminated with "\n", text is escaped like escapeHtml4 and gets a "<br />" before
+ * every line break. Lines are split like BufferedReader.readLine() splits them (\n, \r or \r\n).
+ */
+final class HtmlBodyDecoder {
+    private static final int BUFFER_SIZE = 8192;
+
+    // The escaped form of every character escaped by escapeHtml4, indexed by the character.
+    private static final String[] ESCAPES = buildEscapes();
+
+    // Read buffer, reused for all parts decoded by a thread.
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[BUFFER_SIZE]);
+
+    /**
+     * Decode the content of the given reader.
+     *
+     * @param reader The decoded characters of the part.
+     * @param escapeText Whether the content is text that must be escaped.
+     * @param expectedLength The expected number of characters, used to size the result. -1 if unknown.
+     */
+    static String decode(Reader reader, boolean escapeText, int expectedLength) throws IOException {
+        char[] buffer = BUFFER.get();
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, expectedLength + expectedLength / 8L);
+        StringBuilder html = new StringBuilder(capacity > 0 ? capacity : 16);
+
+        // Whether characters of an unterminated line have been read.
+        boolean inLine = false;
+        // Whether a \n directly after a \r must be skipped.
+        boolean skipLF = false;
+
+        int length;
+        while ((length = reader.read(buffer, 0, BUFFER_SIZE)) >= 0) {
+            for (int i = 0; i < length; i++) {
+                char c = buffer[i];
+
+                if (skipLF) {
+                    skipLF = false;
+                    if (c == '\n') {
+                        continue;
+                    }
+                }
+
+                if (c == '\n' || c == '\r') {
+                    endLine(html, escapeText);
+                    inLine = false;
+                    skipLF = (c == '\r');
+                    continue;
+                }
+
+                inLine = true;
+                String escaped = (escapeText && c < ESCAPES.length) ? ESCAPES[c] : null;
+                if (escaped != null) {
+                    html.append(escaped);
+                } else {
+                    html.append(c);
+                }
+            }
+        }
+
+        if (inLine) {
+            endLine(html, escapeText);
+        }
+
+        return html.toString();
+    }
+
+    private HtmlBodyDecoder() {}
+
+    private static void endLine(StringBuilder html, boolean escapeText) {
+        if (escapeText) {
+            html.append("<br />");
+        }
+        html.append('\n');
+    }
+
+    /**
+     * Build a lookup table from the entity arrays used by escapeHtml4.
+     */
+    private static String[] buildEscapes() {
+        List<Map<CharSequence, CharSequence>> maps = Arrays.asList(
+            EntityArrays.BASIC_ESCAPE,
+            EntityArrays.ISO8859_1_ESCAPE,
+            EntityArrays.HTML40_EXTENDED_ESCAPE
+        );
+
+        int max = 0;
+        for (Map<CharSequence, CharSequence> map : maps) {
+            for (CharSequence key : map.keySet()) {
+                max = Math.max(max, key.charAt(0));
+            }
+        }
+
+        String[] escapes = new String[max + 1];
+        for (Map<CharSequence, CharSequence> map : maps) {
+            for (Map.Entry<CharSequence, CharSequence> entry : map.entrySet()) {
+                // The first map with a mapping wins, like in the AggregateTranslator of escapeHtml4.
+                if (escapes[entry.getKey().charAt(0)] == null) {
+                    escapes[entry.getKey().charAt(0)] = entry.getValue().toString();
+                }
+            }
+        }
+
+        return escapes;
+    }
+}
@@ -3,24 +3,51 @@ package de.dm.mail2blog.base;
 import org.owasp.html.HtmlPolicyBuilder;
 import org.owasp.html.PolicyFactory;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Get a html filter according to the mail configuration.
  */
 public abstract class HtmlFilterFactory {
+    // Policy factories for all combinations of the six filter flags, built when they're used for the first time.
+    // Policy factories are immutable, so they can be shared between threads.
+    private static final AtomicReferenceArray<PolicyFactory> FILTERS = new AtomicReferenceArray<PolicyFactory>(64);
 
     /**
      * Build one htmlPolicyFactory from htmlFilters to filter HTML.
+     * The same instance is returned for configurations with the same filter flags.
      *
      * @return policy factory one can use to filter html
      */
     public static PolicyFactory makeHtmlFilter(Mail2BlogBaseConfiguration mail2BlogBaseConfiguration) {
+        int flags = (mail2BlogBaseConfiguration.getHtmlFilterFormatting() ? 1 : 0)
+            | (mail2BlogBaseConfiguration.getHtmlFilterBlocks() ? 2 : 0)
+            | (mail2BlogBaseConfiguration.getHtmlFilterImages() ? 4 : 0)
+            | (mail2BlogBaseConfiguration.getHtmlFilterLinks() ? 8 : 0)
+            | (mail2BlogBaseConfiguration.getHtmlFilterStyles() ? 16 : 0)
+            | (mail2BlogBaseConfiguration.getHtmlFilterTables() ? 32 : 0);
+
+        PolicyFactory result = FILTERS.get(flags);
+        if (result == null) {
+            // If two threads race, both build the same policy and the first one wins.
+            FILTERS.compareAndSet(flags, null, buildHtmlFilter(flags));
+            result = FILTERS.get(flags);
+        }
+
+        return result;
+    }
+
+    /**
+     * Combine the sanitizers selected by the given flags.
+     */
+    private static PolicyFactory buildHtmlFilter(int flags) {
         PolicyFactory result = new HtmlPolicyBuilder().toFactory();
-        if (mail2BlogBaseConfiguration.getHtmlFilterFormatting()) { result = result.and(HtmlSanitizers.FORMATTING); }
-        if (mail2BlogBaseConfiguration.getHtmlFilterBlocks()) { result = result.and(HtmlSanitizers.BLOCKS); }
-        if (mail2BlogBaseConfiguration.getHtmlFilterImages()) { result = result.and(HtmlSanitizers.IMAGES); }
-        if (mail2BlogBaseConfiguration.getHtmlFilterLinks()) { result = result.and(HtmlSanitizers.LINKS); }
-        if (mail2BlogBaseConfiguration.getHtmlFilterStyles()) { result = result.and(HtmlSanitizers.STYLES); }
-        if (mail2BlogBaseConfiguration.getHtmlFilterTables()) { result = result.and(HtmlSanitizers.TABLES); }
+        if ((flags & 1) != 0) { result = result.and(HtmlSanitizers.FORMATTING); }
+        if ((flags & 2) != 0) { result = result.and(HtmlSanitizers.BLOCKS); }
+        if ((flags & 4) != 0) { result = result.and(HtmlSanitizers.IMAGES); }
+        if ((flags & 8) != 0) { result = result.and(HtmlSanitizers.LINKS); }
+        if ((flags & 16) != 0) { result = result.and(HtmlSanitizers.STYLES); }
+        if ((flags & 32) != 0) { result = result.and(HtmlSanitizers.TABLES); }
         return result;
     }
 }
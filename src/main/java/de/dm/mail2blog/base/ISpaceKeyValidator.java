@@ -1,5 +1,23 @@
 package de.dm.mail2blog.base;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public interface ISpaceKeyValidator {
     boolean spaceExists(String spaceKey);
+
+    /**
+     * Check several space keys at once. Override this, if the spaces can be looked up with one request.
+     *
+     * @return for every given space key whether the space exists.
+     */
+    default Map<String, Boolean> spacesExist(Collection<String> spaceKeys) {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (String spaceKey : spaceKeys) {
+            result.put(spaceKey, spaceExists(spaceKey));
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,800 @@
+package de.dm.mail2blog.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A regexp engine for a safe subset of the java.util.regex syntax, that runs in linear time.
+ *
+ * The regexp is compiled into a program for a Pike VM (Thompson NFA with submatch tracking).
+ * The time to match is bounded by the length of the input times the size of the program,
+ * so a regexp can't hang and needs neither a timeout nor a separate thread.
+ *
+ * Matching is case insensitive for US-ASCII like Pattern.CASE_INSENSITIVE and
+ * find() returns the same match and groups as java.util.regex.Matcher.find().
+ *
+ * Supported are literals, escaped literals, \t \n \r \f \e \a \xhh \\uhhhh, ".", \d \D \w \W \s \S,
+ * character classes with ranges, "^", "$", capturing and non capturing groups, "|"
+ * and the greedy and reluctant quantifiers * + ? {n} {n,} {n,m}.
+ * Everything else (back references, lookaround, possessive quantifiers, inline flags, \b, \p{...}, ...)
+ * is not supported, compile() returns null for such regexps. The same goes for quantifiers
+ * on expressions that can match the empty string, where backtracking engines differ in the groups they report.
+ */
+public class LinearRegexp {
+    // Maximum number of instructions in a program. Prevents excessive expansion of {n,m}.
+    private static final int MAX_PROGRAM_SIZE = 5000;
+
+    // Instructions.
+    private static final int CHAR = 0;      // Match one character (arg1), case insensitive.
+    private static final int ANY = 1;       // Match any character but line terminators.
+    private static final int CLASS = 2;     // Match a character class (classes[pc]).
+    private static final int SPLIT = 3;     // Continue at arg1 and arg2, arg1 has priority.
+    private static final int JMP = 4;       // Continue at arg1.
+    private static final int SAVE = 5;      // Save current position in slot arg1.
+    private static final int BOL = 6;       // Beginning of input.
+    private static final int EOL = 7;       // End of input, possibly before a final line terminator.
+    private static final int MATCH = 8;
+
+    private final int[] op;
+    private final int[] arg1;
+    private final int[] arg2;
+    private final CharClass[] classes;
+
+    // Number of capturing groups without group 0.
+    private final int groupCount;
+
+    private LinearRegexp(Program program, int groupCount) {
+        int size = program.op.size();
+        this.op = new int[size];
+        this.arg1 = new int[size];
+        this.arg2 = new int[size];
+        this.classes = new CharClass[size];
+        for (int i = 0; i < size; i++) {
+            op[i] = program.op.get(i);
+            arg1[i] = program.arg1.get(i);
+            arg2[i] = program.arg2.get(i);
+            classes[i] = program.classes.get(i);
+        }
+        this.groupCount = groupCount;
+    }
+
+    /**
+     * Compile the regexp.
+     *
+     * @return the compiled regexp or null if the regexp is not in the supported subset or invalid.
+     */
+    public static LinearRegexp compile(String regexp) {
+        if (regexp == null) {
+            return null;
+        }
+
+        try {
+            Parser parser = new Parser(regexp);
+            Node node = parser.parseAlternation();
+            if (parser.pos < regexp.length()) {
+                return null; // Unbalanced ")".
+            }
+
+            Program program = new Program();
+            program.emit(SAVE, 0, 0, null);
+            node.emit(program);
+            program.emit(SAVE, 1, 0, null);
+            program.emit(MATCH, 0, 0, null);
+
+            return new LinearRegexp(program, parser.groupCount);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of capturing groups without group 0.
+     */
+    public int groupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Check if this engine can process the given input.
+     * Like java.util.regex the engine would have to work on code points for surrogate pairs, which it doesn't.
+     */
+    public static boolean supportsInput(CharSequence input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (Character.isSurrogate(input.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the first match in the input.
+     *
+     * @return null if there is no match, otherwise the start and end of each group (2 * (groupCount() + 1) entries)
+     *         where -1 marks groups that didn't participate in the match.
+     */
+    public int[] find(CharSequence input) {
+        int slots = 2 * (groupCount + 1);
+        int size = op.length;
+
+        ThreadList current = new ThreadList(size);
+        ThreadList next = new ThreadList(size);
+        int[] matched = null;
+
+        int[] initial = new int[slots];
+        Arrays.fill(initial, -1);
+
+        for (int pos = 0; ; pos++) {
+            // Start a new attempt at this position with the lowest priority, unless a match was found.
+            if (matched == null) {
+                addThread(current, 0, initial, input, pos);
+            }
+
+            char c = (pos < input.length()) ? input.charAt(pos) : 0;
+            for (int t = 0; t < current.count; t++) {
+                int pc = current.pcs[t];
+                int[] caps = current.caps[t];
+
+                switch (op[pc]) {
+                    case MATCH:
+                        matched = caps;
+                        // Threads with lower priority can't win anymore.
+                        t = current.count;
+                        break;
+                    case CHAR:
+                        if (pos < input.length() && equalsIgnoreCase(arg1[pc], c)) {
+                            addThread(next, pc + 1, caps, input, pos + 1);
+                        }
+                        break;
+                    case ANY:
+                        if (pos < input.length() && !isLineTerminator(c)) {
+                            addThread(next, pc + 1, caps, input, pos + 1);
+                        }
+                        break;
+                    case CLASS:
+                        if (pos < input.length() && classes[pc].matches(c)) {
+                            addThread(next, pc + 1, caps, input, pos + 1);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            // Stop at the end of input or if a match was found and no thread can extend it.
+            if (pos >= input.length() || (matched != null && next.count == 0)) {
+                break;
+            }
+
+            ThreadList swap = current;
+            current = next;
+            next = swap;
+            next.clear();
+        }
+
+        return matched;
+    }
+
+    /**
+     * Add a thread and follow all instructions that don't consume input.
+     */
+    private void addThread(ThreadList list, int pc, int[] caps, CharSequence input, int pos) {
+        if (list.contains(pc)) {
+            return;
+        }
+        list.mark(pc);
+
+        switch (op[pc]) {
+            case JMP:
+                addThread(list, arg1[pc], caps, input, pos);
+                break;
+            case SPLIT:
+                addThread(list, arg1[pc], caps, input, pos);
+                addThread(list, arg2[pc], caps, input, pos);
+                break;
+            case SAVE:
+                int[] copy = caps.clone();
+                copy[arg1[pc]] = pos;
+                addThread(list, pc + 1, copy, input, pos);
+                break;
+            case BOL:
+                if (pos == 0) {
+                    addThread(list, pc + 1, caps, input, pos);
+                }
+                break;
+            case EOL:
+                if (isEnd(input, pos)) {
+                    addThread(list, pc + 1, caps, input, pos);
+                }
+                break;
+            default:
+                list.add(pc, caps);
+                break;
+        }
+    }
+
+    /**
+     * "$" without MULTILINE: end of input or before a line terminator at the end of input.
+     */
+    private static boolean isEnd(CharSequence input, int pos) {
+        int length = input.length();
+        if (pos == length) {
+            return true;
+        }
+
+        if (pos == length - 2) {
+            return input.charAt(pos) == '\r' && input.charAt(pos + 1) == '\n';
+        }
+
+        if (pos == length - 1) {
+            char c = input.charAt(pos);
+            if (c == '\n') {
+                return pos == 0 || input.charAt(pos - 1) != '\r';
+            }
+            return c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+        }
+
+        return false;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || (c | 1) == '\u2029';
+    }
+
+    private static boolean equalsIgnoreCase(int expected, char c) {
+        return expected == c || (isAsciiLetter(c) && expected == otherCase(c));
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char otherCase(char c) {
+        return (char) (c ^ 0x20);
+    }
+
+    /**
+     * Threads of the VM at one position in priority order.
+     */
+    private static class ThreadList {
+        private final int[] pcs;
+        private final int[][] caps;
+        private final int[] seen;
+        private int generation = 1;
+        private int count = 0;
+
+        ThreadList(int size) {
+            pcs = new int[size];
+            caps = new int[size][];
+            seen = new int[size];
+        }
+
+        boolean contains(int pc) {
+            return seen[pc] == generation;
+        }
+
+        void mark(int pc) {
+            seen[pc] = generation;
+        }
+
+        void add(int pc, int[] threadCaps) {
+            pcs[count] = pc;
+            caps[count] = threadCaps;
+            count++;
+        }
+
+        void clear() {
+            Arrays.fill(caps, 0, count, null);
+            count = 0;
+            generation++;
+        }
+    }
+
+    /**
+     * Signals that a regexp is not in the supported subset.
+     */
+    private static class Unsupported extends Exception {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A set of characters, matched case insensitive for US-ASCII.
+     */
+    private static class CharClass {
+        private final List<char[]> ranges = new ArrayList<char[]>();
+        private boolean negated = false;
+
+        void addRange(char from, char to) {
+            ranges.add(new char[]{from, to});
+        }
+
+        void addAll(CharClass other) {
+            ranges.addAll(other.ranges);
+        }
+
+        boolean matches(char c) {
+            boolean result = contains(c) || (isAsciiLetter(c) && contains(otherCase(c)));
+            return result != negated;
+        }
+
+        private boolean contains(char c) {
+            for (char[] range : ranges) {
+                if (c >= range[0] && c <= range[1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static CharClass predefined(char name) {
+            CharClass result = new CharClass();
+            switch (Character.toLowerCase(name)) {
+                case 'd':
+                    result.addRange('0', '9');
+                    break;
+                case 'w':
+                    result.addRange('a', 'z');
+                    result.addRange('A', 'Z');
+                    result.addRange('0', '9');
+                    result.addRange('_', '_');
+                    break;
+                default: // 's'
+                    result.addRange(' ', ' ');
+                    result.addRange('\t', '\r'); // \t \n \x0B \f \r
+                    break;
+            }
+            result.negated = Character.isUpperCase(name);
+            return result;
+        }
+    }
+
+    /**
+     * Instructions of a program while it's generated.
+     */
+    private static class Program {
+        private final List<Integer> op = new ArrayList<Integer>();
+        private final List<Integer> arg1 = new ArrayList<Integer>();
+        private final List<Integer> arg2 = new ArrayList<Integer>();
+        private final List<CharClass> classes = new ArrayList<CharClass>();
+
+        int emit(int instruction, int a1, int a2, CharClass charClass) throws Unsupported {
+            if (op.size() >= MAX_PROGRAM_SIZE) {
+                throw new Unsupported();
+            }
+            op.add(instruction);
+            arg1.add(a1);
+            arg2.add(a2);
+            classes.add(charClass);
+            return op.size() - 1;
+        }
+
+        int size() {
+            return op.size();
+        }
+
+        void patch(int pc, int a1, int a2) {
+            arg1.set(pc, a1);
+            arg2.set(pc, a2);
+        }
+    }
+
+    /**
+     * Node of the syntax tree.
+     */
+    private abstract static class Node {
+        abstract void emit(Program program) throws Unsupported;
+
+        // Whether the node can match the empty string.
+        abstract boolean nullable();
+    }
+
+    private static class Atom extends Node {
+        private final int instruction;
+        private final int c;
+        private final CharClass charClass;
+
+        Atom(int instruction, int c, CharClass charClass) {
+            this.instruction = instruction;
+            this.c = c;
+            this.charClass = charClass;
+        }
+
+        void emit(Program program) throws Unsupported {
+            program.emit(instruction, c, 0, charClass);
+        }
+
+        boolean nullable() {
+            return instruction == BOL || instruction == EOL;
+        }
+    }
+
+    private static class Group extends Node {
+        private final Node inner;
+        private final int index;
+
+        Group(Node inner, int index) {
+            this.inner = inner;
+            this.index = index;
+        }
+
+        void emit(Program program) throws Unsupported {
+            program.emit(SAVE, 2 * index, 0, null);
+            inner.emit(program);
+            program.emit(SAVE, 2 * index + 1, 0, null);
+        }
+
+        boolean nullable() {
+            return inner.nullable();
+        }
+    }
+
+    private static class Concat extends Node {
+        private final List<Node> nodes;
+
+        Concat(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        void emit(Program program) throws Unsupported {
+            for (Node node : nodes) {
+                node.emit(program);
+            }
+        }
+
+        boolean nullable() {
+            for (Node node : nodes) {
+                if (!node.nullable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Alternation extends Node {
+        private final List<Node> alternatives;
+
+        Alternation(List<Node> alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        void emit(Program program) throws Unsupported {
+            List<Integer> jumps = new ArrayList<Integer>();
+            for (int i = 0; i < alternatives.size() - 1; i++) {
+                int split = program.emit(SPLIT, 0, 0, null);
+                alternatives.get(i).emit(program);
+                jumps.add(program.emit(JMP, 0, 0, null));
+                program.patch(split, split + 1, program.size());
+            }
+            alternatives.get(alternatives.size() - 1).emit(program);
+            for (int jump : jumps) {
+                program.patch(jump, program.size(), 0);
+            }
+        }
+
+        boolean nullable() {
+            for (Node node : alternatives) {
+                if (node.nullable()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Repeat extends Node {
+        private final Node inner;
+        private final int min;
+        private final int max; // -1 for unbounded.
+        private final boolean greedy;
+
+        Repeat(Node inner, int min, int max, boolean greedy) {
+            this.inner = inner;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        void emit(Program program) throws Unsupported {
+            for (int i = 0; i < min; i++) {
+                inner.emit(program);
+            }
+
+            if (max < 0) {
+                // L: split body, out; body; jmp L
+                int split = program.emit(SPLIT, 0, 0, null);
+                inner.emit(program);
+                program.emit(JMP, split, 0, null);
+                patchSplit(program, split, split + 1, program.size());
+                return;
+            }
+
+            // Optional copies: split body, out; body; split body, out; body; ...
+            List<Integer> splits = new ArrayList<Integer>();
+            for (int i = min; i < max; i++) {
+                splits.add(program.emit(SPLIT, 0, 0, null));
+                inner.emit(program);
+            }
+            for (int split : splits) {
+                patchSplit(program, split, split + 1, program.size());
+            }
+        }
+
+        private void patchSplit(Program program, int split, int body, int out) {
+            if (greedy) {
+                program.patch(split, body, out);
+            } else {
+                program.patch(split, out, body);
+            }
+        }
+
+        boolean nullable() {
+            return min == 0 || inner.nullable();
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset.
+     */
+    private static class Parser {
+        private final String regexp;
+        private int pos = 0;
+        private int groupCount = 0;
+
+        Parser(String regexp) {
+            this.regexp = regexp;
+        }
+
+        Node parseAlternation() throws Unsupported {
+            List<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(parseConcat());
+            while (pos < regexp.length() && regexp.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(parseConcat());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new Alternation(alternatives);
+        }
+
+        Node parseConcat() throws Unsupported {
+            List<Node> nodes = new ArrayList<Node>();
+            while (pos < regexp.length() && regexp.charAt(pos) != '|' && regexp.charAt(pos) != ')') {
+                nodes.add(parseRepeat());
+            }
+            return new Concat(nodes);
+        }
+
+        Node parseRepeat() throws Unsupported {
+            Node node = parseAtom();
+
+            while (pos < regexp.length()) {
+                char c = regexp.charAt(pos);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (c == '{') {
+                    pos++;
+                    min = parseNumber();
+                    max = min;
+                    if (pos < regexp.length() && regexp.charAt(pos) == ',') {
+                        pos++;
+                        max = (pos < regexp.length() && regexp.charAt(pos) == '}') ? -1 : parseNumber();
+                    }
+                    if (pos >= regexp.length() || regexp.charAt(pos) != '}' || (max >= 0 && max < min)) {
+                        throw new Unsupported();
+                    }
+                    pos++;
+                } else {
+                    break;
+                }
+
+                boolean greedy = true;
+                if (pos < regexp.length() && regexp.charAt(pos) == '?') {
+                    greedy = false;
+                    pos++;
+                } else if (pos < regexp.length() && regexp.charAt(pos) == '+') {
+                    throw new Unsupported(); // Possessive.
+                }
+
+                // Backtracking engines treat empty iterations specially, don't try to mimic that.
+                if (node.nullable()) {
+                    throw new Unsupported();
+                }
+
+                node = new Repeat(node, min, max, greedy);
+            }
+
+            return node;
+        }
+
+        int parseNumber() throws Unsupported {
+            int start = pos;
+            while (pos < regexp.length() && Character.isDigit(regexp.charAt(pos)) && pos - start < 4) {
+                pos++;
+            }
+            if (start == pos || (pos < regexp.length() && Character.isDigit(regexp.charAt(pos)))) {
+                throw new Unsupported();
+            }
+            return Integer.parseInt(regexp.substring(start, pos));
+        }
+
+        Node parseAtom() throws Unsupported {
+            char c = regexp.charAt(pos);
+            switch (c) {
+                case '(':
+                    pos++;
+                    int index = -1;
+                    if (regexp.startsWith("?:", pos)) {
+                        pos += 2;
+                    } else if (pos < regexp.length() && regexp.charAt(pos) == '?') {
+                        throw new Unsupported(); // Lookaround, flags, named groups.
+                    } else {
+                        index = ++groupCount;
+                    }
+                    Node inner = parseAlternation();
+                    if (pos >= regexp.length() || regexp.charAt(pos) != ')') {
+                        throw new Unsupported();
+                    }
+                    pos++;
+                    return index < 0 ? inner : new Group(inner, index);
+                case '[':
+                    pos++;
+                    return new Atom(CLASS, 0, parseClass());
+                case '.':
+                    pos++;
+                    return new Atom(ANY, 0, null);
+                case '^':
+                    pos++;
+                    return new Atom(BOL, 0, null);
+                case '$':
+                    pos++;
+                    return new Atom(EOL, 0, null);
+                case '\\':
+                    pos++;
+                    if (pos < regexp.length() && "dDwWsS".indexOf(regexp.charAt(pos)) >= 0) {
+                        return new Atom(CLASS, 0, CharClass.predefined(regexp.charAt(pos++)));
+                    }
+                    return new Atom(CHAR, parseEscape(), null);
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new Unsupported(); // Dangling quantifier.
+                default:
+                    if (Character.isSurrogate(c)) {
+                        throw new Unsupported();
+                    }
+                    pos++;
+                    return new Atom(CHAR, c, null);
+            }
+        }
+
+        /**
+         * Parse the escape sequence after a backslash and return the character.
+         */
+        char parseEscape() throws Unsupported {
+            if (pos >= regexp.length()) {
+                throw new Unsupported();
+            }
+
+            char c = regexp.charAt(pos++);
+            switch (c) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'e': return '\u001B';
+                case 'a': return '\u0007';
+                case 'x': return parseHex(2);
+                case 'u': return parseHex(4);
+                default:
+                    // Escaped characters that aren't letters or digits stand for themselves.
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= 0x80) {
+                        throw new Unsupported();
+                    }
+                    return c;
+            }
+        }
+
+        char parseHex(int digits) throws Unsupported {
+            if (pos + digits > regexp.length()) {
+                throw new Unsupported();
+            }
+
+            int value = 0;
+            for (int i = 0; i < digits; i++) {
+                int digit = Character.digit(regexp.charAt(pos++), 16);
+                if (digit < 0) {
+                    throw new Unsupported();
+                }
+                value = value * 16 + digit;
+            }
+
+            if (Character.isSurrogate((char) value)) {
+                throw new Unsupported();
+            }
+            return (char) value;
+        }
+
+        /**
+         * Parse a character class after the opening bracket.
+         */
+        CharClass parseClass() throws Unsupported {
+            CharClass result = new CharClass();
+            if (pos < regexp.length() && regexp.charAt(pos) == '^') {
+                result.negated = true;
+                pos++;
+            }
+
+            boolean first = true;
+            while (true) {
+                if (pos >= regexp.length()) {
+                    throw new Unsupported();
+                }
+
+                char c = regexp.charAt(pos);
+                if (c == ']' && !first) {
+                    pos++;
+                    return result;
+                }
+                first = false;
+
+                // Nested classes and intersections.
+                if (c == '[' || regexp.startsWith("&&", pos)) {
+                    throw new Unsupported();
+                }
+
+                char from;
+                if (c == '\\') {
+                    pos++;
+                    if (pos < regexp.length() && "dws".indexOf(regexp.charAt(pos)) >= 0) {
+                        result.addAll(CharClass.predefined(regexp.charAt(pos++)));
+                        continue;
+                    }
+                    from = parseEscape();
+                } else if (Character.isSurrogate(c)) {
+                    throw new Unsupported();
+                } else {
+                    from = c;
+                    pos++;
+                }
+
+                // Range?
+                if (pos + 1 < regexp.length() && regexp.charAt(pos) == '-' && regexp.charAt(pos + 1) != ']') {
+                    pos++;
+                    char to;
+                    char d = regexp.charAt(pos);
+                    if (d == '\\') {
+                        pos++;
+                        to = parseEscape();
+                    } else if (d == '[' || Character.isSurrogate(d)) {
+                        throw new Unsupported();
+                    } else {
+                        to = d;
+                        pos++;
+                    }
+
+                    if (to < from) {
+                        throw new Unsupported();
+                    }
+                    result.addRange(from, to);
+                } else {
+                    result.addRange(from, from);
+                }
+            }
+        }
+    }
+}
@@ -4,12 +4,29 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.NonNull;
 
+import java.io.File;
+
 @Builder
 public class Mail2BlogBaseConfiguration {
     @Getter @NonNull private String defaultSpace;
     @Getter @NonNull private SpaceRule[] spaceRules;
     @Getter @NonNull private String defaultContentType;
 
+    // The space rules with precompiled regexps and indexes.
+    // They are compiled once, when the rules are used for the first time.
+    @Getter(lazy = true) private final CompiledSpaceRuleSet compiledSpaceRules = CompiledSpaceRuleSet.compile(spaceRules, linearRegexpEngine);
+
+    // Evaluate regexps that are supported by the LinearRegexp engine inline
+    // instead of with java.util.regex on the RegexExecutor.
+    @Getter private boolean linearRegexpEngine;
+
+    // Quarantine a regexp rule after this many timeouts within the window.
+    // A quarantined rule is skipped until the cool-down ends. If set to 0 rules are never quarantined.
+    // The stats of the rules are available from getCompiledSpaceRules().getRegexpRuleStats().
+    @Getter private int regexpQuarantineThreshold;
+    @Getter private long regexpQuarantineWindowInMilliseconds;
+    @Getter private long regexpQuarantineCooldownInMilliseconds;
+
     // List of preferred content types to use.
     // There are preferred in the order of the list.
     @Getter @NonNull private String[] preferredContentTypes;
@@ -17,12 +34,40 @@ public class Mail2BlogBaseConfiguration {
     // The maximum allowed size for an attachment.
     @Getter private long maxAllowedAttachmentSizeInBytes;
 
+    // Attachments larger than this are spilled to a temporary file instead of being kept in memory.
+    // If set to -1 attachments are always kept in memory (the default).
+    // When spilling is enabled, close every MailPartData to delete its temporary file.
+    @Getter private long spillThresholdInBytes;
+
+    // The directory for temporary files. If null the default temp directory is used.
+    @Getter private File spillDirectory;
+
+    // Only extract the metadata of mail parts and decode the content when MailPartData.getHtml()
+    // or MailPartData.getStream() is called. The file size of attachments is then estimated
+    // from the size declared in the mail and the size limit is enforced while the stream is read.
+    @Getter private boolean lazyContent;
+
     // The maximum allowed number of attachments.
     // If set to -1 the number isn't limited.
     @Getter private int maxAllowedNumberOfAttachments;
 
+    // Limits per message, that stop a single mail from using unbounded memory or time.
+    // Exceeding one of them fails the whole message with a MessageLimitExceededException.
+    // If set to -1 the limit isn't checked, which is the default for all of them.
+    // The total number of bytes decoded from text parts and attachments.
+    @Getter private long maxDecodedBytesPerMessage;
+    // The nesting depth of mime parts, the parts of the message have depth 1.
+    @Getter private int maxMimeDepth;
+    // The total number of mime parts.
+    @Getter private int maxPartsPerMessage;
+    // The time getContent() may take. It's checked between parts and while data is read.
+    @Getter private long decodeDeadlineInMilliseconds;
+
     @Getter @NonNull private FileTypeBucket fileTypeBucket;
 
+    // Receives timings and counters of parsing and routing.
+    @Getter @NonNull private MetricsListener metricsListener;
+
     // The rules to use to filter HTML in mails.
     // The plugin uses the owasp.html framework to filter html.
     // We store them as boolean flags to be compatible with xstream/bandana storage
@@ -44,8 +89,20 @@ public class Mail2BlogBaseConfiguration {
         private String defaultContentType = ContentTypes.BlogPost;
         private String[] preferredContentTypes = new String[]{"text/html", "application/xhtml+xml", "text/plain"};
         private long maxAllowedAttachmentSizeInBytes = 1024 * 1024 * 100; // 100mb
+        private long spillThresholdInBytes = -1; // Off, spilled files must be deleted with MailPartData.close()
+        private File spillDirectory = null;
+        private boolean lazyContent = false;
         private int maxAllowedNumberOfAttachments = -1;
+        private long maxDecodedBytesPerMessage = -1;
+        private int maxMimeDepth = -1;
+        private int maxPartsPerMessage = -1;
+        private long decodeDeadlineInMilliseconds = -1;
         private FileTypeBucket fileTypeBucket = FileTypeBucket.defaultBucket();
+        private boolean linearRegexpEngine = false;
+        private int regexpQuarantineThreshold = 3;
+        private long regexpQuarantineWindowInMilliseconds = 1000 * 60; // 1 minute
+        private long regexpQuarantineCooldownInMilliseconds = 1000 * 60 * 10; // 10 minutes
+        private MetricsListener metricsListener = MetricsListener.NONE;
 
         private boolean htmlFilterFormatting = true;
         private boolean htmlFilterBlocks = true;
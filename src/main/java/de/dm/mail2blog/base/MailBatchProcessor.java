@@ -0,0 +1,235 @@
+package de.dm.mail2blog.base;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.owasp.html.PolicyFactory;
+
+import javax.mail.Message;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Parses, routes and sanitizes many messages in parallel.
+ *
+ * Messages are pulled from the source while results are consumed, so that at most maxInFlight
+ * messages are processed or waiting to be consumed at any time. A message that fails doesn't stop the
+ * batch, instead its result holds the error.
+ *
+ * Processing mails mostly waits for I/O, so on Java 21+ an executor from VirtualThreads.newExecutor()
+ * lets many mails be processed concurrently without a platform thread for each. Without an executor,
+ * the processor uses a pool of its own with maxInFlight daemon threads, that end when they're idle.
+ */
+@Slf4j
+public class MailBatchProcessor {
+    private final Mail2BlogBaseConfiguration mail2BlogBaseConfiguration;
+    private final SpaceExtractor spaceExtractor;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final boolean ordered;
+    private final PolicyFactory htmlFilter;
+
+    /**
+     * @param mail2BlogBaseConfiguration The config used for all messages.
+     * @param spaceExtractor Finds the spaces of the messages.
+     * @param executor Runs the processing of the messages, null to use a pool of the processor.
+     * @param maxInFlight The maximum number of messages processed or waiting to be consumed.
+     * @param ordered Whether results are returned in the order of the messages or as soon as they're done.
+     * @param sanitizeHtml Whether to sanitize the html of the messages with the html filter of the config.
+     */
+    @Builder
+    public MailBatchProcessor(
+        @NonNull Mail2BlogBaseConfiguration mail2BlogBaseConfiguration,
+        @NonNull SpaceExtractor spaceExtractor,
+        Executor executor,
+        int maxInFlight,
+        boolean ordered,
+        boolean sanitizeHtml
+    ) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+
+        this.mail2BlogBaseConfiguration = mail2BlogBaseConfiguration;
+        this.spaceExtractor = spaceExtractor;
+        this.executor = (executor != null) ? executor : newDefaultExecutor(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+        this.htmlFilter = sanitizeHtml ? HtmlFilterFactory.makeHtmlFilter(mail2BlogBaseConfiguration) : null;
+    }
+
+    /**
+     * Process the given messages.
+     *
+     * @see MailBatchProcessor#process(Stream)
+     */
+    public Stream<MailBatchResult> process(@NonNull Collection<? extends Message> messages) {
+        return process(messages.stream());
+    }
+
+    /**
+     * Process the given messages. The returned stream is lazy, messages are taken from the source
+     * when results are consumed. Consume it from one thread only.
+     */
+    public Stream<MailBatchResult> process(@NonNull Stream<? extends Message> messages) {
+        ResultIterator results = new ResultIterator(messages.iterator());
+        int characteristics = Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, characteristics), false)
+            .onClose(messages::close);
+    }
+
+    /**
+     * Process a single message. Errors are returned in the result.
+     */
+    MailBatchResult processMessage(Message message) {
+        List<MailPartData> content = null;
+        try {
+            MessageParser messageParser = new MessageParser(message, mail2BlogBaseConfiguration);
+            content = messageParser.getContent();
+            List<SpaceInfo> spaces = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+            List<String> sanitizedHtml = null;
+            if (htmlFilter != null) {
+                sanitizedHtml = new ArrayList<String>(content.size());
+                for (MailPartData part : content) {
+                    String html = part.getHtml();
+                    sanitizedHtml.add(html == null ? null : htmlFilter.sanitize(html));
+                }
+            }
+
+            return MailBatchResult.builder()
+                .message(message)
+                .senderEmail(messageParser.getSenderEmail())
+                .content(content)
+                .rejections(messageParser.getRejections())
+                .spaces(spaces)
+                .sanitizedHtml(sanitizedHtml)
+                .build();
+        } catch (Exception e) {
+            // Delete the temporary files of attachments that were already extracted.
+            if (content != null) {
+                MessageParser.closeAll(content);
+            }
+
+            return errorResult(message, e);
+        }
+    }
+
+    /**
+     * Make the result of a message that failed with the given error.
+     */
+    private static MailBatchResult errorResult(Message message, Throwable e) {
+        log.debug("Mail2Blog: failed to process message in batch", e);
+        MessageParserException error = (e instanceof MessageParserException)
+            ? (MessageParserException) e
+            : new MessageParserException("failed to process message", e);
+
+        return MailBatchResult.builder().message(message).error(error).build();
+    }
+
+    /**
+     * Create a pool of maxInFlight daemon threads, which end when they're idle,
+     * so that a processor that isn't used anymore doesn't keep threads around.
+     */
+    private static Executor newDefaultExecutor(int maxInFlight) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new VirtualThreads.DaemonThreadFactory()
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Builder class with default values.
+    public static class MailBatchProcessorBuilder {
+        private Executor executor = null;
+        private int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        private boolean ordered = true;
+        private boolean sanitizeHtml = true;
+    }
+
+    /**
+     * Submits messages as long as less than maxInFlight are pending and hands out the results.
+     */
+    private class ResultIterator implements Iterator<MailBatchResult> {
+        private final Iterator<? extends Message> source;
+
+        // Ordered mode: pending results in the order of the messages.
+        private final Deque<CompletableFuture<MailBatchResult>> pending = new ArrayDeque<CompletableFuture<MailBatchResult>>();
+
+        // Unordered mode: results in the order they completed.
+        private final BlockingQueue<MailBatchResult> completed = new LinkedBlockingQueue<MailBatchResult>();
+
+        // The number of submitted messages whose result wasn't returned yet.
+        private int inFlight = 0;
+
+        ResultIterator(Iterator<? extends Message> source) {
+            this.source = source;
+        }
+
+        private void fill() {
+            while (inFlight < maxInFlight && source.hasNext()) {
+                Message message = source.next();
+                // Errors that processMessage doesn't catch (e.g. a StackOverflowError) become an error result too,
+                // so that every message yields exactly one result.
+                CompletableFuture<MailBatchResult> future = CompletableFuture
+                    .supplyAsync(() -> processMessage(message), executor)
+                    .handle((result, error) -> (error == null) ? result : errorResult(message, unwrap(error)));
+                if (ordered) {
+                    pending.add(future);
+                } else {
+                    future.thenAccept(completed::add);
+                }
+                inFlight++;
+            }
+        }
+
+        private Throwable unwrap(Throwable error) {
+            return (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return inFlight > 0;
+        }
+
+        @Override
+        public MailBatchResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            MailBatchResult result;
+            if (ordered) {
+                result = pending.poll().join();
+            } else {
+                try {
+                    result = completed.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for a result", e);
+                }
+            }
+
+            inFlight--;
+            return result;
+        }
+    }
+}
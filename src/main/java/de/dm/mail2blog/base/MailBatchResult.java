@@ -0,0 +1,26 @@
+package de.dm.mail2blog.base;
+
+import lombok.Builder;
+import lombok.Data;
+
+import javax.mail.Message;
+import java.util.List;
+
+/**
+ * The result of processing one message in a MailBatchProcessor.
+ * If processing failed, error is set and the other fields except message are null.
+ */
+@Data
+@Builder
+public class MailBatchResult {
+    private Message message;
+    private String senderEmail;
+    private List<MailPartData> content;
+    private List<AttachmentRejection> rejections;
+    private List<SpaceInfo> spaces;
+
+    // The sanitized html of every part in content, null for attachments or if sanitizing is disabled.
+    private List<String> sanitizedHtml;
+
+    private MessageParserException error;
+}
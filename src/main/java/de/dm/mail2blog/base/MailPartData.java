@@ -1,19 +1,193 @@
 package de.dm.mail2blog.base;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.SneakyThrows;
 import lombok.ToString;
+import org.owasp.html.Handler;
+import org.owasp.html.HtmlChangeListener;
+import org.owasp.html.HtmlSanitizer;
+import org.owasp.html.HtmlStreamRenderer;
+import org.owasp.html.PolicyFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
 
 /**
  * Bean to store information about a part of an email (multipart emails).
+ *
+ * Close the part data when done with it, to delete temporary files of large attachments.
+ * In lazy mode (see Mail2BlogBaseConfiguration.lazyContent) only the metadata is extracted
+ * until getHtml() or getStream() is called. toString(), equals() and hashCode() only look at the
+ * fields, so they never decode content or open streams.
  */
-@Data @ToString(includeFieldNames=true)
-public class MailPartData {
+@Data
+@ToString(includeFieldNames=true, doNotUseGetters=true)
+@EqualsAndHashCode(doNotUseGetters=true)
+public class MailPartData implements Closeable {
 
     private AttachementData attachementData = null;
     private InputStream stream = null;
     private String html = null;
     private String contentID = null;
     private String contentType = null;
+
+    // The Content-Transfer-Encoding of an attachment (e.g. "base64"), null if the mail doesn't declare one.
+    private String transferEncoding = null;
+
+    // Holds the data of an attachment. The stream is opened on first access.
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.PACKAGE) @ToString.Exclude @EqualsAndHashCode.Exclude
+    private AttachmentBuffer buffer = null;
+
+    // Lazy mode: opens the data of an attachment directly from the mail on first access.
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.PACKAGE) @ToString.Exclude @EqualsAndHashCode.Exclude
+    private Callable<InputStream> streamLoader = null;
+
+    // Opens the still encoded data of an attachment directly from the mail.
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.PACKAGE) @ToString.Exclude @EqualsAndHashCode.Exclude
+    private Callable<InputStream> rawStreamLoader = null;
+
+    // Lazy mode: decodes the content of a text part on first access.
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.PACKAGE) @ToString.Exclude @EqualsAndHashCode.Exclude
+    private Callable<String> htmlLoader = null;
+
+    /**
+     * Get a stream with the data of the attachment.
+     */
+    @SneakyThrows
+    public InputStream getStream() {
+        if (stream == null && buffer != null) {
+            stream = buffer.openStream();
+        } else if (stream == null && streamLoader != null) {
+            stream = streamLoader.call();
+            streamLoader = null;
+        }
+
+        return stream;
+    }
+
+    /**
+     * Write the data of the attachment to the given output.
+     * Data held in memory isn't copied and in lazy mode the data is streamed from the mail,
+     * so the attachment is never held in memory as a whole.
+     *
+     * @return the number of bytes written.
+     */
+    public long transferTo(@NonNull OutputStream output) throws IOException {
+        if (stream == null && buffer != null) {
+            return buffer.transferTo(output);
+        }
+
+        InputStream input = getStream();
+        return (input == null) ? 0 : ByteCopier.copy(input, output);
+    }
+
+    /**
+     * Write the data of the attachment to the given (blocking) channel.
+     * Attachments spilled to a temporary file are transferred by the OS.
+     *
+     * @see MailPartData#transferTo(OutputStream)
+     */
+    public long transferTo(@NonNull WritableByteChannel output) throws IOException {
+        if (stream == null && buffer != null) {
+            return buffer.transferTo(output);
+        }
+
+        InputStream input = getStream();
+        return (input == null) ? 0 : ByteCopier.copy(input, output);
+    }
+
+    /**
+     * Open a stream with the data of the attachment as it's stored in the mail,
+     * still encoded with the transfer encoding given by getTransferEncoding().
+     * This is meant for sinks that decode the data themselves, e.g. base64 aware upload APIs.
+     * Every call opens a new stream, that must be closed by the caller.
+     *
+     * Note that the size limit for attachments applies to the decoded data and isn't enforced on this stream.
+     *
+     * @return the stream or null if the raw data isn't available.
+     */
+    @SneakyThrows
+    public InputStream getRawStream() {
+        return (rawStreamLoader == null) ? null : rawStreamLoader.call();
+    }
+
+    /**
+     * Get the content as html. In lazy mode the content is decoded on first access.
+     */
+    @SneakyThrows
+    public String getHtml() {
+        if (html == null && htmlLoader != null) {
+            html = htmlLoader.call();
+            htmlLoader = null;
+        }
+
+        return html;
+    }
+
+    /**
+     * Sanitize the html and write it to the given output.
+     *
+     * @see MailPartData#writeSanitizedHtml(PolicyFactory, Appendable, HtmlChangeListener, Object)
+     */
+    public void writeSanitizedHtml(@NonNull PolicyFactory policyFactory, @NonNull Appendable output) throws IOException {
+        writeSanitizedHtml(policyFactory, output, null, null);
+    }
+
+    /**
+     * Sanitize the html and write it to the given output, without building the sanitized html as a String.
+     * In lazy mode the content is decoded for sanitizing only and isn't kept in the part data.
+     *
+     * @param listener Gets notified about removed elements and attributes, may be null.
+     */
+    @SneakyThrows
+    public <CTX> void writeSanitizedHtml(
+        @NonNull PolicyFactory policyFactory,
+        @NonNull Appendable output,
+        HtmlChangeListener<CTX> listener,
+        CTX context
+    )
+    throws IOException
+    {
+        String input = (html == null && htmlLoader != null) ? htmlLoader.call() : html;
+        if (input == null) {
+            return;
+        }
+
+        // The renderer can't throw, so remember the first error of the output.
+        IOException[] error = new IOException[1];
+        HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
+            output,
+            e -> { if (error[0] == null) { error[0] = e; } },
+            Handler.DO_NOTHING
+        );
+
+        HtmlSanitizer.sanitize(input, listener == null ? policyFactory.apply(renderer) : policyFactory.apply(renderer, listener, context));
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * Close the stream and delete the temporary file of the attachment, if there is one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+        }
+
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package de.dm.mail2blog.base;
+
+import com.google.common.base.Throwables;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the resources used to parse one message against the per message limits of the configuration.
+ *
+ * The limits are checked cooperatively: whenever a multipart is entered and whenever bytes are read
+ * from a stream wrapped with wrap(). A limit of -1 disables the check.
+ */
+class MessageBudget {
+    private final long maxBytes;
+    private final int maxDepth;
+    private final int maxParts;
+
+    // Deadline in System.nanoTime(), only valid if hasDeadline is set.
+    private final boolean hasDeadline;
+    private final long deadline;
+
+    private long bytes = 0;
+    private long parts = 0;
+
+    // The paths of the multiparts whose body parts were counted. The walks over the mail reach them several times
+    // and may get a new Multipart object every time (e.g. for IMAP messages), so they're identified by their path.
+    private final Set<String> counted = new HashSet<String>();
+
+    MessageBudget(Mail2BlogBaseConfiguration config) {
+        this.maxBytes = config.getMaxDecodedBytesPerMessage();
+        this.maxDepth = config.getMaxMimeDepth();
+        this.maxParts = config.getMaxPartsPerMessage();
+        this.hasDeadline = config.getDecodeDeadlineInMilliseconds() >= 0;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getDecodeDeadlineInMilliseconds()));
+    }
+
+    /**
+     * Count the body parts of a multipart, when it's reached for the first time.
+     *
+     * @param path The path of the part that contains the multipart, see MessageParser.
+     * @param depth The nesting depth of the body parts, the body parts of the message have depth 1.
+     */
+    void enterMultipart(String path, Multipart multipart, int depth) throws MessagingException, MessageLimitExceededException {
+        if (maxDepth >= 0 && depth > maxDepth) {
+            throw new MessageLimitExceededException("mime parts nested deeper than " + maxDepth + " levels");
+        }
+
+        if (counted.add(path)) {
+            parts += multipart.getCount();
+            if (maxParts >= 0 && parts > maxParts) {
+                throw new MessageLimitExceededException("message has more than " + maxParts + " parts");
+            }
+        }
+
+        checkDeadline();
+    }
+
+    /**
+     * Count decoded bytes.
+     */
+    void countBytes(long count) throws MessageLimitExceededException {
+        bytes += count;
+        if (maxBytes >= 0 && bytes > maxBytes) {
+            throw new MessageLimitExceededException("message has more than " + maxBytes + " decoded bytes");
+        }
+
+        checkDeadline();
+    }
+
+    void checkDeadline() throws MessageLimitExceededException {
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            throw new MessageLimitExceededException("decoding the message took too long");
+        }
+    }
+
+    /**
+     * Wrap a stream of decoded bytes, so that reads count against the budget.
+     * Exceeded limits are thrown as IOException with the MessageLimitExceededException as cause.
+     */
+    InputStream wrap(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int bytesRead = super.read(buffer, offset, length);
+                if (bytesRead > 0) {
+                    count(bytesRead);
+                }
+                return bytesRead;
+            }
+
+            private void count(long count) throws IOException {
+                try {
+                    countBytes(count);
+                } catch (MessageLimitExceededException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Find an exceeded limit in the causes of an exception.
+     *
+     * @return the exceeded limit or null if the exception wasn't caused by one.
+     */
+    static MessageLimitExceededException limitExceeded(Throwable e) {
+        for (Throwable cause : Throwables.getCausalChain(e)) {
+            if (cause instanceof MessageLimitExceededException) {
+                return (MessageLimitExceededException) cause;
+            }
+        }
+
+        return null;
+    }
+}
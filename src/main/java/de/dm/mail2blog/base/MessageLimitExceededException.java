@@ -0,0 +1,12 @@
+package de.dm.mail2blog.base;
+
+/**
+ * Thrown by MessageParser.getContent() if a message exceeds one of the per message limits
+ * of the configuration (decoded bytes, nesting depth, number of parts or decode deadline).
+ */
+public class MessageLimitExceededException extends MessageParserException {
+    public MessageLimitExceededException() {}
+    public MessageLimitExceededException(String message) { super(message); }
+    public MessageLimitExceededException(Throwable cause) { super(cause); }
+    public MessageLimitExceededException(String message, Throwable cause) { super(message, cause); }
+}
@@ -1,5 +1,9 @@
 package de.dm.mail2blog.base;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.CountingInputStream;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
@@ -7,31 +11,53 @@ import javax.mail.*;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
 import java.io.*;
 import java.nio.charset.Charset;
-import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
 @Slf4j
 public class MessageParser {
+    // Resolved charsets by name, empty if the charset is unknown.
+    private static final Cache<String, Optional<Charset>> CHARSET_CACHE = CacheBuilder.newBuilder()
+        .maximumSize(256)
+        .recordStats()
+        .build();
+
     // Config to use.
     private Mail2BlogBaseConfiguration mail2BlogBaseConfiguration;
 
+    // Receives timings and counters.
+    private final MetricsListener metrics;
+
     // Message to parse.
     Message message;
 
-    // The number of attachments processed.
+    // The attachments rejected by the pre-scan, before their data is read, by the path of their part.
+    // The walks over the mail may get new Part objects every time (e.g. for IMAP messages), so parts are
+    // identified by their path: the indexes of the body parts that lead to them, joined by dots.
+    private final Map<String, AttachmentRejection> prescanned = new HashMap<String, AttachmentRejection>();
+
+    // The number of attachments extracted by the current call to getContent().
     private int attachmentCounter = 0;
 
+    // The attachments that were not extracted.
+    private final List<AttachmentRejection> rejections = new ArrayList<AttachmentRejection>();
+
+    // The per message limits of the current call to getContent().
+    private MessageBudget budget;
+
     public MessageParser(@NonNull Message message, @NonNull Mail2BlogBaseConfiguration mail2BlogBaseConfiguration) {
         this.mail2BlogBaseConfiguration = mail2BlogBaseConfiguration;
+        this.metrics = mail2BlogBaseConfiguration.getMetricsListener();
         this.message = message;
     }
 
@@ -73,11 +99,37 @@ public class MessageParser {
 
     /**
      * Analyse content of mail.
+     * Attachments that are rejected are listed by getRejections() afterwards.
+     *
+     * @throws MessageLimitExceededException If the message exceeds one of the per message limits of the configuration.
+     *         In lazy mode content that's decoded after getContent() returned isn't counted.
+     *         The parts extracted until then are closed, so that no temporary files are left behind.
      */
     public List<MailPartData> getContent()
     throws MessageParserException
     {
-        return extract(message);
+        prescanned.clear();
+        rejections.clear();
+        attachmentCounter = 0;
+        budget = new MessageBudget(mail2BlogBaseConfiguration);
+
+        prescan(message, "", 0);
+        List<MailPartData> result = extract(message, "", 0);
+        try {
+            budget.checkDeadline();
+        } catch (MessageLimitExceededException e) {
+            closeAll(result);
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the attachments that were rejected by the last call to getContent(), in the order of the mail.
+     */
+    public List<AttachmentRejection> getRejections() {
+        return Collections.unmodifiableList(rejections);
     }
 
     /**
@@ -87,106 +139,323 @@ public class MessageParser {
      * @return Returns the used charset or the default charset, if no information is found.
      */
     public Charset getCharsetFromHeader(String contentType) {
-        Charset charset = null;
+        String charsetName = getCharsetName(contentType);
+        if (charsetName == null) {
+            return Charset.defaultCharset();
+        }
 
-        Pattern pattern = Pattern.compile("charset=\"?([0-9a-zA-Z\\-]+)");
-        Matcher match = pattern.matcher(contentType);
-        if (match.find()) {
-            String charsetName = match.group(1);
+        Optional<Charset> charset = CHARSET_CACHE.getIfPresent(charsetName);
+        if (charset == null) {
             try {
-                charset = Charset.forName(charsetName);
-            } catch (UnsupportedCharsetException e) {
-                charset = null;
+                charset = Optional.of(Charset.forName(charsetName));
+            } catch (IllegalArgumentException e) {
+                // Unknown or illegal name, cache that too.
+                charset = Optional.empty();
             }
+            CHARSET_CACHE.put(charsetName, charset);
         }
 
-        if (charset == null) {
-            charset = Charset.defaultCharset();
+        return charset.orElse(Charset.defaultCharset());
+    }
+
+    /**
+     * Get the statistics of the cache used to resolve charsets.
+     * Every call to getCharsetFromHeader with a charset in the header counts as a hit or a miss.
+     */
+    public static CacheStats getCharsetCacheStats() {
+        return CHARSET_CACHE.stats();
+    }
+
+    /**
+     * Find the value of the charset parameter in a "Content-Type" header.
+     *
+     * @return the name of the charset or null if there's no charset parameter.
+     */
+    static String getCharsetName(String contentType) {
+        int length = contentType.length();
+        int index = 0;
+
+        while ((index = indexOfIgnoreCase(contentType, "charset=", index)) >= 0) {
+            // Don't match the end of another parameter name.
+            if (index > 0 && isCharsetNameChar(contentType.charAt(index - 1))) {
+                index++;
+                continue;
+            }
+
+            int start = index + "charset=".length();
+            if (start < length && contentType.charAt(start) == '"') {
+                start++;
+            }
+
+            int end = start;
+            while (end < length && isCharsetNameChar(contentType.charAt(end))) {
+                end++;
+            }
+
+            return end > start ? contentType.substring(start, end) : null;
+        }
+
+        return null;
+    }
+
+    private static int indexOfIgnoreCase(String string, String search, int fromIndex) {
+        for (int i = fromIndex; i <= string.length() - search.length(); i++) {
+            if (string.regionMatches(true, i, search, 0, search.length())) {
+                return i;
+            }
         }
 
-        return charset;
+        return -1;
+    }
+
+    /**
+     * Check if the character can be part of a charset name (see java.nio.charset.Charset).
+     */
+    private static boolean isCharsetNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '+' || c == ':' || c == '_' || c == '.';
     }
 
     /**
      * Extract text and attachments from a given E-Mail, or a part of multipart E-Mail.
      *
      * @param part The E-Mail or part of an E-Mail to handle.
+     * @param path The path of the part, "" for the E-Mail.
+     * @param depth The nesting depth of the part, 0 for the E-Mail.
      * @return the extracted data.
      */
-    private List<MailPartData> extract(Part part)
+    private List<MailPartData> extract(Part part, String path, int depth) throws MessageLimitExceededException
     {
         ArrayList<MailPartData> result = new ArrayList<MailPartData>();
 
         try {
-            if (part.getContent() instanceof Multipart) {
-                result.addAll(extractMultiPart((Multipart)part.getContent()));
+            long start = metrics.startTiming();
+            Multipart multipart = getMultipart(part, path, depth);
+            if (multipart != null) {
+                List<Integer> bodyParts = choosePreferred(multipart, path, depth);
+                metrics.stopTiming(MetricNames.MultipartWalking, start);
+                result.addAll(extractMultiPart(multipart, bodyParts, path, depth));
             } else {
-                result.add(extractPart(part));
+                result.add(extractPart(part, path));
             }
         }  catch (Exception e) {
+            rethrowLimitExceeded(e);
+            metrics.count(MetricNames.PartsDropped, 1);
             log.debug("Mail2Blog: failed to process part of message", e);
         }
 
         return result;
     }
 
+    /**
+     * Get the multipart content of a part. Only multipart parts are parsed,
+     * so that the body of other parts isn't decoded.
+     *
+     * The body parts count against the budget of the message.
+     *
+     * @param path The path of the part.
+     * @param depth The nesting depth of the part.
+     * @return the multipart or null if the part isn't a multipart.
+     */
+    private Multipart getMultipart(Part part, String path, int depth) throws Exception
+    {
+        if (!part.isMimeType("multipart/*")) {
+            return null;
+        }
+
+        Object content = part.getContent();
+        if (!(content instanceof Multipart)) {
+            return null;
+        }
+
+        budget.enterMultipart(path, (Multipart) content, depth + 1);
+        return (Multipart) content;
+    }
+
+    /**
+     * Get the path of the body part with the given index of the multipart in the part with the given path.
+     */
+    private static String childPath(String path, int index) {
+        return path.isEmpty() ? String.valueOf(index) : path + "." + index;
+    }
+
+    /**
+     * Rethrow the exceeded limit, if the given exception was caused by one.
+     * Other exceptions only drop the part that caused them.
+     */
+    private static void rethrowLimitExceeded(Exception e) throws MessageLimitExceededException {
+        MessageLimitExceededException limit = MessageBudget.limitExceeded(e);
+        if (limit != null) {
+            throw limit;
+        }
+    }
+
     /**
      * Handle a mime multi part of an E-Mail. Chooses part with preferred contenttype in multipart/alternative.
+     * The choice is made from the headers, so only the body parts that are used get decoded.
+     *
+     * @param bodyParts The indexes of the body parts to use, see choosePreferred().
+     * @param path The path of the part that contains the multipart.
+     * @param depth The nesting depth of the part that contains the multipart.
+     */
+    private List<MailPartData> extractMultiPart(Multipart part, List<Integer> bodyParts, String path, int depth) throws Exception
+    {
+        ArrayList<MailPartData> result = new ArrayList<MailPartData>();
+        try {
+            for (int i = 0; i < part.getCount(); i++) {
+                if (bodyParts == null || bodyParts.contains(i)) {
+                    result.addAll(extract(part.getBodyPart(i), childPath(path, i), depth + 1));
+                }
+            }
+        } catch (Exception e) {
+            // Delete the temporary files of the parts extracted so far.
+            closeAll(result);
+            throw e;
+        }
+
+        return result;
+    }
+
+    /**
+     * Close the given parts, so that the temporary files of spilled attachments are deleted.
+     */
+    static void closeAll(List<MailPartData> parts) {
+        for (MailPartData part : parts) {
+            try {
+                part.close();
+            } catch (Exception e) {
+                log.debug("Mail2Blog: failed to close part of message", e);
+            }
+        }
+    }
+
+    /**
+     * In multipart alternative, choose the body parts with the preferred content type (html, text).
+     *
+     * @return the indexes of the chosen body parts or null if all body parts should be used,
+     *         because this is not a multipart/alternative or no preferred content type was found.
+     * @param path The path of the part that contains the multipart.
+     * @param depth The nesting depth of the part that contains the multipart.
      */
-    private List<MailPartData> extractMultiPart(Multipart part) throws Exception
+    private List<Integer> choosePreferred(Multipart part, String path, int depth) throws Exception
     {
-        // Get the content of all body parts.
-        ArrayList<List<MailPartData>> bodyPartData = new ArrayList<List<MailPartData>>(part.getCount());
+        if (!part.getContentType().toLowerCase().startsWith("multipart/alternative")) {
+            return null;
+        }
+
+        ArrayList<List<String>> bodyPartContentTypes = new ArrayList<List<String>>(part.getCount());
         for (int i = 0; i < part.getCount(); i++) {
-            bodyPartData.add(i, extract(part.getBodyPart(i)));
-        }
-
-        // In multipart alternative,
-        // use part with preferred content type (html, text).
-        boolean foundPreferred = false;
-        ArrayList<MailPartData> dataWithPreferred = new ArrayList<MailPartData>();
-        if (part.getContentType().toLowerCase().startsWith("multipart/alternative")) {
-            for (String contentType : mail2BlogBaseConfiguration.getPreferredContentTypes()) {
-                if (!foundPreferred) {
-                    // Walk through all body parts and use body parts that contain
-                    // one ore more parts with the preferred content type.
-                    for (int i = 0; i < part.getCount(); i++) {
-                        boolean bodyPartContainsPreferred = false;
-
-                        for (MailPartData data : bodyPartData.get(i)) {
-                            if (data.getContentType().toLowerCase().startsWith(contentType)) {
-                                foundPreferred = true;
-                                bodyPartContainsPreferred = true;
-                            }
-                        }
-
-                        if (bodyPartContainsPreferred) {
-                            dataWithPreferred.addAll(bodyPartData.get(i));
-                        }
+            bodyPartContentTypes.add(i, getContentTypes(part.getBodyPart(i), childPath(path, i), depth + 1));
+        }
+
+        for (String contentType : mail2BlogBaseConfiguration.getPreferredContentTypes()) {
+            // Walk through all body parts and use body parts that contain
+            // one ore more parts with the preferred content type.
+            ArrayList<Integer> bodyPartsWithPreferred = new ArrayList<Integer>();
+            for (int i = 0; i < part.getCount(); i++) {
+                for (String bodyPartContentType : bodyPartContentTypes.get(i)) {
+                    if (bodyPartContentType.startsWith(contentType)) {
+                        bodyPartsWithPreferred.add(i);
+                        break;
                     }
                 }
             }
+
+            if (!bodyPartsWithPreferred.isEmpty()) {
+                return bodyPartsWithPreferred;
+            }
         }
 
-        // Return data with preferred content type if this is a multipart/alternative.
-        // If we can't find a preferred content type or if this is not a multipart/alternative
-        // return all data.
-        if (foundPreferred) {
-            return dataWithPreferred;
-        } else {
-            ArrayList<MailPartData> result = new ArrayList<MailPartData>();
-            for (List<MailPartData> list: bodyPartData) {
-                result.addAll(list);
+        return null;
+    }
+
+    /**
+     * Get the content types of the parts that would be extracted from the given part,
+     * by looking only at the headers.
+     */
+    private List<String> getContentTypes(Part part, String path, int depth) throws MessageLimitExceededException
+    {
+        ArrayList<String> result = new ArrayList<String>();
+
+        try {
+            Multipart multipart = getMultipart(part, path, depth);
+            if (multipart != null) {
+                List<Integer> bodyParts = choosePreferred(multipart, path, depth);
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    if (bodyParts == null || bodyParts.contains(i)) {
+                        result.addAll(getContentTypes(multipart.getBodyPart(i), childPath(path, i), depth + 1));
+                    }
+                }
+            } else if (part.getContentType() != null) {
+                result.add(part.getContentType().toLowerCase());
             }
+        }  catch (Exception e) {
+            rethrowLimitExceeded(e);
+            log.debug("Mail2Blog: failed to get content type of part of message", e);
+        }
 
-            return result;
+        return result;
+    }
+
+    /**
+     * Walk through the parts that would be extracted and decide from the headers which attachments
+     * are rejected, because of their type or their declared size.
+     * No body is decoded, only multiparts are parsed.
+     *
+     * The number of attachments is checked when they're extracted, because attachments accepted here
+     * may still be dropped later.
+     *
+     * @param path The path of the part.
+     * @param depth The nesting depth of the part.
+     */
+    private void prescan(Part part, String path, int depth) throws MessageLimitExceededException
+    {
+        try {
+            Multipart multipart = getMultipart(part, path, depth);
+            if (multipart != null) {
+                List<Integer> bodyParts = choosePreferred(multipart, path, depth);
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    if (bodyParts == null || bodyParts.contains(i)) {
+                        prescan(multipart.getBodyPart(i), childPath(path, i), depth + 1);
+                    }
+                }
+                return;
+            }
+
+            String mimeType = getMimeType(part);
+            if (isContentType(mimeType)) {
+                return;
+            }
+
+            if (!mail2BlogBaseConfiguration.getFileTypeBucket().checkMimeType(mimeType)) {
+                prescanned.put(path, rejection(part, mimeType, AttachmentRejectionReasons.ForbiddenType));
+            } else if (minimumDecodedSize(part) > mail2BlogBaseConfiguration.getMaxAllowedAttachmentSizeInBytes()) {
+                prescanned.put(path, rejection(part, mimeType, AttachmentRejectionReasons.TooLarge));
+            }
+        }  catch (Exception e) {
+            rethrowLimitExceeded(e);
+            log.debug("Mail2Blog: failed to scan part of message", e);
         }
     }
 
     /**
      * Extract text or info about an attachment from a given part of an E-Mail.
      */
-    private MailPartData extractPart(Part part) throws Exception
+    private MailPartData extractPart(Part part, String path) throws Exception
+    {
+        String mimeType = getMimeType(part);
+
+        if (isContentType(mimeType)) {
+            return extractContent(part, mimeType);
+        } else {
+            return extractAttachment(part, path, mimeType);
+        }
+    }
+
+    /**
+     * Get the lower case mime type of a part without parameters.
+     */
+    private static String getMimeType(Part part) throws Exception
     {
         String mimeType = part.getContentType();
 
@@ -198,52 +467,79 @@ public class MessageParser {
         int index = mimeType.indexOf(';');
         if (index >= 0) { mimeType = mimeType.substring(0, index); }
 
+        return mimeType;
+    }
 
-        String m = mimeType.toLowerCase();
-        if (m.equals("application/xhtml+xml") || m.equals("text/html") || m.equals("text/plain")) {
-            return extractContent(part, mimeType);
-        } else {
-            return extractAttachment(part, mimeType);
-        }
+    /**
+     * Check if parts of the given mime type are extracted as content instead of as attachment.
+     */
+    private static boolean isContentType(String mimeType) {
+        return mimeType.equals("application/xhtml+xml") || mimeType.equals("text/html") || mimeType.equals("text/plain");
     }
 
     /**
      * Extract info about a content part form a given part of an email.
+     * In lazy mode the content is decoded when it's requested for the first time.
      */
     private MailPartData extractContent(Part part, String mimeType) throws Exception {
         MailPartData result = new MailPartData();
         result.setContentType(mimeType);
 
+        if (mail2BlogBaseConfiguration.getLazyContent()) {
+            result.setHtmlLoader(() -> decodeContent(part, mimeType, null));
+        } else {
+            result.setHtml(decodeContent(part, mimeType, budget));
+        }
+
+        return result;
+    }
+
+    /**
+     * Decode a content part into html. Text is escaped and line breaks are converted.
+     *
+     * @param budget The budget to count the decoded bytes against, null to not count them.
+     */
+    private String decodeContent(Part part, String mimeType, MessageBudget budget) throws Exception {
         Charset charset = getCharsetFromHeader(part.getContentType());
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(part.getInputStream(), charset));
-        String line;
-        StringBuilder html = new StringBuilder();
-        while ((line = reader.readLine()) != null) {
-            if (mimeType.equals("text/plain")) {
-                html.append(escapeHtml4(line));
-                html.append("<br />");
-            } else {
-                html.append(line);
-            }
-            html.append("\n");
-        }
+        long start = metrics.startTiming();
+        InputStream data = part.getInputStream();
+        CountingInputStream input = new CountingInputStream(budget == null ? data : budget.wrap(data));
+        Reader reader = new InputStreamReader(input, charset);
+        String html = HtmlBodyDecoder.decode(reader, mimeType.equals("text/plain"), part.getSize());
 
-        result.setHtml(html.toString());
+        metrics.stopTiming(MetricNames.TextDecoding, start);
+        metrics.count(MetricNames.BytesDecoded, input.getCount());
 
-        return result;
+        return html;
     }
 
     /**
      * Extract info about an attachment from a given part of an email.
+     *
+     * @param path The path of the part.
      */
-    private MailPartData extractAttachment(Part part, String mimeType) throws Exception {
+    private MailPartData extractAttachment(Part part, String path, String mimeType) throws Exception {
         MailPartData result = new MailPartData();
         result.setContentType(mimeType);
 
+        // Attachments rejected by the pre-scan are dropped before their data is read.
+        AttachmentRejection rejection = prescanned.get(path);
+        if (rejection == null && !mail2BlogBaseConfiguration.getFileTypeBucket().checkMimeType(mimeType)) {
+            // The pre-scan didn't reach the part, e.g. because reading its headers failed then.
+            rejection = rejection(part, mimeType, AttachmentRejectionReasons.ForbiddenType);
+        }
+
+        // Only attachments that were extracted count against the maximum, so that attachments
+        // dropped for other reasons don't push later ones over the limit.
         int maxattachments = mail2BlogBaseConfiguration.getMaxAllowedNumberOfAttachments();
-        if (maxattachments >= 0 && attachmentCounter >= maxattachments) {
-            throw new Exception("maximum number of attachments exceeded");
+        if (rejection == null && maxattachments >= 0 && attachmentCounter >= maxattachments) {
+            rejection = rejection(part, mimeType, AttachmentRejectionReasons.TooMany);
+        }
+
+        if (rejection != null) {
+            reject(rejection);
+            throw new Exception("attachment rejected: " + rejection.getReason());
         }
 
         // Get the filename.
@@ -257,57 +553,145 @@ public class MessageParser {
         // Sanitize file name.
         filename = mail2BlogBaseConfiguration.getFileTypeBucket().saneFilename(filename, mimeType);
 
-        // Check that the mime type of the extension is allowed.
-        if (!mail2BlogBaseConfiguration.getFileTypeBucket().checkMimeType(mimeType)) {
-            throw new Exception("contentType forbidden");
+        // In lazy mode only collect the metadata, the data is read when the stream is requested.
+        if (mail2BlogBaseConfiguration.getLazyContent()) {
+            long maxSize = mail2BlogBaseConfiguration.getMaxAllowedAttachmentSizeInBytes();
+            result.setStreamLoader(() -> new SizeLimitedInputStream(part.getInputStream(), maxSize));
+            setAttachmentMetadata(result, part, filename, mimeType, estimateDecodedSize(part));
+            attachmentCounter++;
+            return result;
         }
 
-        // Read input stream into a byte array.
-        byte[] bytes;
+        // Read input stream into a buffer, that spills large attachments to disk.
+        AttachmentBuffer output = new AttachmentBuffer(
+            mail2BlogBaseConfiguration.getSpillThresholdInBytes(),
+            mail2BlogBaseConfiguration.getSpillDirectory()
+        );
+        long maxSize = mail2BlogBaseConfiguration.getMaxAllowedAttachmentSizeInBytes();
         long filesize = 0;
-        {
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            InputStream input = part.getInputStream();
-            int bytesRead = 0;
-
-            do {
-                if (filesize > mail2BlogBaseConfiguration.getMaxAllowedAttachmentSizeInBytes()) {
+        long start = metrics.startTiming();
+        try {
+            InputStream input = budget.wrap(part.getInputStream());
+            byte[] buffer = ByteCopier.buffer();
+            int bytesRead;
+
+            // Read at most one byte more than allowed, to notice that the attachment is too large.
+            long remaining = Math.max(1, (maxSize < Long.MAX_VALUE) ? maxSize + 1 : maxSize);
+            while ((bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                output.write(buffer, 0, bytesRead);
+                filesize += bytesRead;
+                remaining -= bytesRead;
+
+                if (filesize > maxSize) {
+                    reject(rejection(part, mimeType, AttachmentRejectionReasons.TooLarge));
                     throw new Exception("attachment larger than allowed");
                 }
+            }
+        } catch (Exception e) {
+            output.close();
+            throw e;
+        }
 
-                byte[] buffer = new byte[1024];
-                bytesRead = input.read(buffer);
+        metrics.stopTiming(MetricNames.AttachmentCopy, start);
+        metrics.count(MetricNames.BytesDecoded, filesize);
 
-                if (bytesRead > 0) {
-                    output.write(buffer, 0, bytesRead);
-                    filesize += bytesRead;
-                }
-            } while (bytesRead > 0);
+        setAttachmentMetadata(result, part, filename, mimeType, filesize);
+        result.setBuffer(output);
+        attachmentCounter++;
 
-            bytes = output.toByteArray();
+        return result;
+    }
 
+    /**
+     * Describe why an attachment is rejected.
+     */
+    private static AttachmentRejection rejection(Part part, String mimeType, String reason) throws MessagingException {
+        return AttachmentRejection.builder()
+            .filename(part.getFileName())
+            .mediaType(mimeType)
+            .declaredSize(estimateDecodedSize(part))
+            .reason(reason)
+            .build();
+    }
 
-            Date d = new Date();
+    private void reject(AttachmentRejection rejection) {
+        rejections.add(rejection);
+        metrics.count(MetricNames.AttachmentsRejected, 1);
+    }
 
-            // Create new attachment.
-            result.setAttachementData(AttachementData.builder()
-                    .filename(filename)
-                    .mediaType(mimeType)
-                    .fileSize(filesize)
-                    .creationDate(d)
-                    .lastModificationDate(d)
-                    .build());
+    /**
+     * Store the metadata of an attachment in the part data.
+     */
+    private void setAttachmentMetadata(MailPartData result, Part part, String filename, String mimeType, long filesize)
+    throws MessagingException
+    {
+        Date d = new Date();
+
+        // Create new attachment.
+        result.setAttachementData(AttachementData.builder()
+                .filename(filename)
+                .mediaType(mimeType)
+                .fileSize(filesize)
+                .creationDate(d)
+                .lastModificationDate(d)
+                .build());
+
+        if (part instanceof MimeBodyPart) {
+            MimeBodyPart mime = (MimeBodyPart) part;
+            result.setContentID(mime.getContentID());
+            result.setRawStreamLoader(mime::getRawInputStream);
+        } else if (part instanceof MimeMessage) {
+            result.setRawStreamLoader(((MimeMessage) part)::getRawInputStream);
+        }
 
-            if (part instanceof MimeBodyPart) {
-                MimeBodyPart mime = (MimeBodyPart) part;
-                result.setContentID(mime.getContentID());
-            }
+        if (part instanceof MimePart) {
+            result.setTransferEncoding(((MimePart) part).getEncoding());
+        }
+    }
 
-            result.setStream(new ByteArrayInputStream(bytes));
+    /**
+     * Get a lower bound of the decoded size of a part from the size declared in the mail and the transfer encoding,
+     * so that attachments can be rejected from their size before they're decoded.
+     *
+     * @return the minimum size in bytes or -1 if the size is unknown.
+     */
+    static long minimumDecodedSize(Part part) throws MessagingException {
+        int size = part.getSize();
+        if (size < 0) {
+            return -1;
+        }
 
-            attachmentCounter++;
+        String encoding = (part instanceof MimePart) ? ((MimePart) part).getEncoding() : null;
+        if (encoding == null || "7bit".equalsIgnoreCase(encoding) || "8bit".equalsIgnoreCase(encoding)
+            || "binary".equalsIgnoreCase(encoding)) {
+            return size;
+        } else if ("base64".equalsIgnoreCase(encoding)) {
+            // 4 characters per 3 bytes, even with a line break after every 4 characters.
+            return size / 2;
+        } else if ("quoted-printable".equalsIgnoreCase(encoding)) {
+            // Every byte takes at most 3 characters.
+            return size / 3;
+        }
 
-            return result;
+        return -1;
+    }
+
+    /**
+     * Estimate the decoded size of a part from the size declared in the mail and the transfer encoding.
+     *
+     * @return the estimated size in bytes or -1 if the size is unknown.
+     */
+    static long estimateDecodedSize(Part part) throws MessagingException {
+        int size = part.getSize();
+        if (size < 0) {
+            return -1;
         }
+
+        String encoding = (part instanceof MimePart) ? ((MimePart) part).getEncoding() : null;
+        if ("base64".equalsIgnoreCase(encoding)) {
+            return size * 3L / 4;
+        }
+
+        return size;
     }
 }
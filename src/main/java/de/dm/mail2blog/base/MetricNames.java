@@ -0,0 +1,28 @@
+package de.dm.mail2blog.base;
+
+// Names of the stages and counters reported to a MetricsListener
+public abstract class MetricNames {
+    // Reading a routable field (from, to, cc, subject) from the message or its headers.
+    public static final String HeaderParsing = "header_parsing";
+    // Parsing a multipart and choosing the alternative to use.
+    public static final String MultipartWalking = "multipart_walking";
+    // Decoding a text or html part.
+    public static final String TextDecoding = "text_decoding";
+    // Copying an attachment into its buffer.
+    public static final String AttachmentCopy = "attachment_copy";
+    // Evaluating space rules, followed by "." and the operator, or "literals" for the literal index.
+    public static final String RuleEvaluation = "rule_evaluation";
+    // Checking if spaces exist.
+    public static final String ValidatorLookup = "validator_lookup";
+
+    // Bytes read from parts after the transfer encoding was decoded.
+    public static final String BytesDecoded = "bytes_decoded";
+    // Parts that were dropped because they couldn't be processed.
+    public static final String PartsDropped = "parts_dropped";
+    // Attachments rejected because of their type, size or number.
+    public static final String AttachmentsRejected = "attachments_rejected";
+    // Regexps that were interrupted because they took too long.
+    public static final String RegexTimeouts = "regex_timeouts";
+    // Regexp rules that were skipped, because they are quarantined after too many timeouts.
+    public static final String RulesQuarantined = "rules_quarantined";
+}
@@ -0,0 +1,56 @@
+package de.dm.mail2blog.base;
+
+/**
+ * Receives timings and counters from MessageParser and SpaceExtractor, e.g. to export them to a metrics backend.
+ * The names of stages and counters are listed in MetricNames.
+ *
+ * Both methods do nothing by default. With NONE, which is the default in the configuration,
+ * the library doesn't even read the clock.
+ */
+public interface MetricsListener {
+    MetricsListener NONE = new MetricsListener() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public long startTiming() {
+            return 0;
+        }
+
+        @Override
+        public void stopTiming(String stage, long start) {}
+    };
+
+    /**
+     * Whether timings and counters should be collected at all.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * A stage took the given time.
+     */
+    default void timing(String stage, long nanos) {}
+
+    /**
+     * A counter was increased by the given amount.
+     */
+    default void count(String counter, long delta) {}
+
+    /**
+     * Get the start time for stopTiming().
+     */
+    default long startTiming() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Report the time since the given start time for a stage.
+     */
+    default void stopTiming(String stage, long start) {
+        timing(stage, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,212 @@
+package de.dm.mail2blog.base;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the regular expressions of space rules with a timeout.
+ *
+ * All evaluations share one bounded thread pool, so evaluating a rule is a queue handoff
+ * and not the creation of a new thread. Idle threads are released after a while.
+ * If more evaluations are waiting than the queue limit allows, new ones are rejected.
+ * The timeout of an evaluation starts when it starts to run, so waiting in the queue never times out a rule.
+ *
+ * With virtualThreads every evaluation runs on a new virtual thread, if the JVM supports them (Java 21+).
+ * Semaphores then take the place of the pool: at most parallelism evaluations run at the same time,
+ * until they end even if they timed out, and at most queueLimit wait for their turn.
+ */
+public class RegexExecutor implements AutoCloseable {
+    // The executor shared by all SpaceExtractors that don't get one injected.
+    private static RegexExecutor defaultExecutor = null;
+
+    private final ExecutorService executor;
+
+    // Limit the running and the waiting evaluations when running on virtual threads, null for the thread pool.
+    private final Semaphore executions;
+    private final Semaphore admissions;
+
+    // The time a regexp may take until it's interrupted.
+    @Getter private final long timeoutInMilliseconds;
+
+    /**
+     * @param parallelism The maximum number of regexps evaluated at the same time.
+     * @param queueLimit The maximum number of regexps waiting for evaluation.
+     * @param timeoutInMilliseconds The time a regexp may take until it's interrupted.
+     */
+    public RegexExecutor(int parallelism, int queueLimit, long timeoutInMilliseconds) {
+        this(parallelism, queueLimit, timeoutInMilliseconds, false);
+    }
+
+    /**
+     * @param parallelism The maximum number of regexps evaluated at the same time.
+     * @param queueLimit The maximum number of regexps waiting for evaluation.
+     * @param timeoutInMilliseconds The time a regexp may take until it's interrupted.
+     * @param virtualThreads Whether to evaluate regexps on virtual threads, if they're available.
+     */
+    @Builder
+    public RegexExecutor(int parallelism, int queueLimit, long timeoutInMilliseconds, boolean virtualThreads) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+
+        if (queueLimit < 1) {
+            throw new IllegalArgumentException("queueLimit must be at least 1");
+        }
+
+        this.timeoutInMilliseconds = timeoutInMilliseconds;
+
+        if (virtualThreads && VirtualThreads.isAvailable()) {
+            this.executor = VirtualThreads.newExecutor(parallelism);
+            this.executions = new Semaphore(parallelism);
+            this.admissions = new Semaphore(queueLimit);
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                parallelism,
+                parallelism,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit),
+                new RegexThreadFactory()
+            );
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.executions = null;
+            this.admissions = null;
+        }
+    }
+
+    /**
+     * Get the executor that is shared by all SpaceExtractors that don't get an executor injected.
+     * The shared executor is never shut down, but its threads are released when idle.
+     */
+    public static synchronized RegexExecutor defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = RegexExecutor.builder().build();
+        }
+
+        return defaultExecutor;
+    }
+
+    /**
+     * Run the given callable and interrupt it, if it takes longer than the timeout.
+     * The timeout starts when the callable starts to run, the time waiting for a thread doesn't count.
+     *
+     * @throws java.util.concurrent.TimeoutException If the callable took too long.
+     * @throws java.util.concurrent.RejectedExecutionException If the queue is full or the executor was shut down.
+     * @throws java.util.concurrent.ExecutionException If the callable threw an exception.
+     */
+    public <T> T call(Callable<T> callable) throws Exception {
+        if (admissions != null && !admissions.tryAcquire()) {
+            throw new RejectedExecutionException("too many regexps waiting for evaluation");
+        }
+
+        // The admission is given back once the evaluation starts to run or if it never does.
+        AtomicBoolean waiting = new AtomicBoolean(true);
+        Runnable leaveQueue = () -> {
+            if (admissions != null && waiting.compareAndSet(true, false)) {
+                admissions.release();
+            }
+        };
+
+        CountDownLatch started = new CountDownLatch(1);
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                if (executions != null) {
+                    try {
+                        executions.acquire();
+                    } finally {
+                        leaveQueue.run();
+                    }
+                }
+                started.countDown();
+
+                // An evaluation that timed out keeps its permit until it notices the interrupt.
+                try {
+                    return callable.call();
+                } finally {
+                    if (executions != null) {
+                        executions.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            leaveQueue.run();
+            throw e;
+        }
+
+        try {
+            awaitStart(started, future);
+            return future.get(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } finally {
+            leaveQueue.run();
+        }
+    }
+
+    /**
+     * Wait until the evaluation started to run, or ended without running.
+     */
+    private void awaitStart(CountDownLatch started, Future<?> future) throws InterruptedException {
+        long pollInMilliseconds = Math.max(1, timeoutInMilliseconds);
+        while (!started.await(pollInMilliseconds, TimeUnit.MILLISECONDS) && !future.isDone()) {
+            // Evaluations still queued when the executor is shut down never run.
+            if (executor.isShutdown()) {
+                future.cancel(true);
+                throw new RejectedExecutionException("regex executor was shut down");
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new evaluations and interrupt running ones.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    // Builder class with default values.
+    public static class RegexExecutorBuilder {
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int queueLimit = 1000;
+        private long timeoutInMilliseconds = 100;
+        private boolean virtualThreads = false;
+    }
+
+    /**
+     * Creates named daemon threads, so that a forgotten executor doesn't keep the JVM alive.
+     */
+    private static class RegexThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mail2blog-regex-" + poolNumber + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
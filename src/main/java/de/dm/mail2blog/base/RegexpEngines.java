@@ -0,0 +1,17 @@
+package de.dm.mail2blog.base;
+
+// Engines that can evaluate the regexps in space rules.
+public abstract class RegexpEngines {
+    // LinearRegexp: runs inline in linear time, supports a subset of the regexp syntax.
+    public static final String Linear = "linear";
+
+    // java.util.regex guarded by a timeout on the RegexExecutor.
+    public static final String Guarded = "guarded";
+
+    /**
+     * Get the engine that can evaluate the given regexp.
+     */
+    public static String forRegexp(String regexp) {
+        return (LinearRegexp.compile(regexp) != null) ? Linear : Guarded;
+    }
+}
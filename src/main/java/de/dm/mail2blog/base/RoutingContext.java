@@ -0,0 +1,212 @@
+package de.dm.mail2blog.base;
+
+import lombok.NonNull;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of the fields of a message that space rules are evaluated against.
+ *
+ * Every field is read from the message once, when it's needed for the first time,
+ * and then shared by all rules. Errors while reading a field are remembered too.
+ * A context can be created from a message or from its headers only, so that mails can be
+ * routed before their bodies are downloaded.
+ * A RoutingContext belongs to one message and must not be shared between threads.
+ */
+public class RoutingContext {
+    /**
+     * Reads the trimmed values of one of the fields FROM, TO, CC or SUBJECT.
+     */
+    interface FieldReader {
+        List<String> read(String field) throws MessagingException;
+    }
+
+    private final FieldReader reader;
+
+    // The trimmed values by field.
+    private final Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+    // The trimmed and case folded values by field.
+    private final Map<String, List<String>> foldedValues = new HashMap<String, List<String>>();
+
+    // Receives the time it takes to read the fields.
+    private MetricsListener metricsListener = MetricsListener.NONE;
+
+    // The errors of fields that couldn't be read.
+    private final Map<String, MessagingException> errors = new HashMap<String, MessagingException>();
+
+    RoutingContext(@NonNull FieldReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Create a context that reads the fields from the given message.
+     */
+    public static RoutingContext of(@NonNull Message message) {
+        return new RoutingContext(field -> readField(message, field));
+    }
+
+    /**
+     * Create a context that reads the fields from the given headers,
+     * e.g. from an envelope-only fetch, without the body of the message.
+     */
+    public static RoutingContext of(@NonNull InternetHeaders headers) {
+        return new RoutingContext(field -> readField(headers, field));
+    }
+
+    /**
+     * Create a context from the headers at the start of a raw message (e.g. an .eml file).
+     * Only the header section is read, the stream is left positioned at the start of the body.
+     */
+    public static RoutingContext fromHeaders(@NonNull InputStream message) throws MessagingException {
+        return of(new InternetHeaders(message));
+    }
+
+    /**
+     * Get the trimmed values of a field.
+     *
+     * @param field One of the fields in SpaceRuleFields.
+     * @throws MessagingException If the field couldn't be read from the message.
+     */
+    public List<String> getValues(String field) throws MessagingException {
+        if (errors.containsKey(field)) {
+            throw errors.get(field);
+        }
+
+        List<String> result = values.get(field);
+        if (result != null) {
+            return result;
+        }
+
+        try {
+            if (SpaceRuleFields.ToCC.equals(field)) {
+                List<String> to = getValues(SpaceRuleFields.TO);
+                List<String> cc = getValues(SpaceRuleFields.CC);
+                List<String> toCC = new ArrayList<String>(to.size() + cc.size());
+                toCC.addAll(to);
+                toCC.addAll(cc);
+                result = Collections.unmodifiableList(toCC);
+            } else {
+                long start = metricsListener.startTiming();
+                result = Collections.unmodifiableList(reader.read(field));
+                metricsListener.stopTiming(MetricNames.HeaderParsing, start);
+            }
+        } catch (MessagingException e) {
+            errors.put(field, e);
+            throw e;
+        }
+
+        values.put(field, result);
+        return result;
+    }
+
+    /**
+     * Set the listener that receives the time it takes to read the fields.
+     */
+    void setMetricsListener(@NonNull MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /**
+     * Get the trimmed values of a field, folded to lower case like String.equalsIgnoreCase() does.
+     *
+     * @see RoutingContext#getValues(String)
+     */
+    public List<String> getFoldedValues(String field) throws MessagingException {
+        List<String> result = foldedValues.get(field);
+        if (result != null) {
+            return result;
+        }
+
+        List<String> original = getValues(field);
+        List<String> folded = new ArrayList<String>(original.size());
+        for (String value : original) {
+            folded.add(CompiledSpaceRuleSet.fold(value));
+        }
+
+        result = Collections.unmodifiableList(folded);
+        foldedValues.put(field, result);
+        return result;
+    }
+
+    /**
+     * Read the trimmed values of a field from a message.
+     */
+    private static List<String> readField(Message message, String field) throws MessagingException {
+        ArrayList<String> result = new ArrayList<String>();
+
+        if (SpaceRuleFields.FROM.equals(field)) {
+            addAddresses(result, message.getFrom());
+        } else if (SpaceRuleFields.TO.equals(field)) {
+            addAddresses(result, message.getRecipients(Message.RecipientType.TO));
+        } else if (SpaceRuleFields.CC.equals(field)) {
+            addAddresses(result, message.getRecipients(Message.RecipientType.CC));
+        } else if (SpaceRuleFields.SUBJECT.equals(field)) {
+            String subject = message.getSubject();
+            if (subject != null) {
+                result.add(subject.trim());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the trimmed values of a field from headers, the same way MimeMessage does.
+     */
+    private static List<String> readField(InternetHeaders headers, String field) throws MessagingException {
+        ArrayList<String> result = new ArrayList<String>();
+
+        if (SpaceRuleFields.FROM.equals(field)) {
+            String from = headers.getHeader("From", ",");
+            addAddresses(result, parseAddresses(from != null ? from : headers.getHeader("Sender", ",")));
+        } else if (SpaceRuleFields.TO.equals(field)) {
+            addAddresses(result, parseAddresses(headers.getHeader("To", ",")));
+        } else if (SpaceRuleFields.CC.equals(field)) {
+            addAddresses(result, parseAddresses(headers.getHeader("Cc", ",")));
+        } else if (SpaceRuleFields.SUBJECT.equals(field)) {
+            String subject = headers.getHeader("Subject", null);
+            if (subject != null) {
+                subject = MimeUtility.unfold(subject);
+                try {
+                    subject = MimeUtility.decodeText(subject);
+                } catch (UnsupportedEncodingException e) {
+                    // Use the undecoded subject, like MimeMessage.getSubject().
+                }
+                result.add(subject.trim());
+            }
+        }
+
+        return result;
+    }
+
+    private static Address[] parseAddresses(String header) throws AddressException {
+        return (header == null) ? null : InternetAddress.parseHeader(header, true);
+    }
+
+    private static void addAddresses(List<String> result, Address[] addresses) {
+        if (addresses == null) {
+            return;
+        }
+
+        for (Address a : addresses) {
+            String emailAddress = (a instanceof InternetAddress)
+                    ? ((InternetAddress) a).getAddress()
+                    : a.toString();
+            result.add(emailAddress.trim());
+        }
+    }
+}
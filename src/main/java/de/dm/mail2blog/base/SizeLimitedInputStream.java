@@ -0,0 +1,59 @@
+package de.dm.mail2blog.base;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that fails once more than the allowed number of bytes were read.
+ */
+class SizeLimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count = 0;
+
+    /**
+     * @param in The stream to read from.
+     * @param limit The maximum number of bytes that can be read.
+     */
+    SizeLimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int bytesRead = super.read(bytes, offset, length);
+        if (bytesRead > 0) {
+            count(bytesRead);
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(long bytes) throws IOException {
+        count += bytes;
+        if (count > limit) {
+            throw new IOException("attachment larger than allowed");
+        }
+    }
+}
@@ -1,29 +1,53 @@
 package de.dm.mail2blog.base;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.util.concurrent.SimpleTimeLimiter;
-import com.google.common.util.concurrent.TimeLimiter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
-import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.internet.InternetAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @Slf4j
-@RequiredArgsConstructor
 public class SpaceExtractor {
+    // ObjectMapper is thread-safe once configured, so one instance is used to describe rules in log messages.
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // Measures the cpu time of regexp evaluations.
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
     @NonNull ISpaceKeyValidator spaceKeyValidator;
 
+    // Runs regexps with a timeout.
+    @NonNull RegexExecutor regexExecutor;
+
+    /**
+     * Create a SpaceExtractor that evaluates regexps with the shared default executor.
+     */
+    public SpaceExtractor(@NonNull ISpaceKeyValidator spaceKeyValidator) {
+        this(spaceKeyValidator, RegexExecutor.defaultExecutor());
+    }
+
+    /**
+     * Create a SpaceExtractor that evaluates regexps with the given executor.
+     * The caller is responsible for shutting down the executor.
+     */
+    public SpaceExtractor(@NonNull ISpaceKeyValidator spaceKeyValidator, @NonNull RegexExecutor regexExecutor) {
+        this.spaceKeyValidator = spaceKeyValidator;
+        this.regexExecutor = regexExecutor;
+    }
+
     /**
      * @param mail2BlogBaseConfiguration The config to use
      * @param message The mail message from which to extract the space key.
@@ -32,51 +56,147 @@ public class SpaceExtractor {
      */
     public List<SpaceInfo> getSpaces(Mail2BlogBaseConfiguration mail2BlogBaseConfiguration, Message message)
     {
-        // Evaluate space rules.
-        ArrayList<SpaceInfo> spaces = new ArrayList<SpaceInfo>();
-        HashMap<String, Void> seenSpaceKeys = new HashMap<String, Void>();
-        for (SpaceRule rule : mail2BlogBaseConfiguration.getSpaceRules()) {
+        return getSpaces(mail2BlogBaseConfiguration, RoutingContext.of(message));
+    }
+
+    /**
+     * @param mail2BlogBaseConfiguration The config to use
+     * @param context The fields of the mail message from which to extract the space key.
+     *
+     * @return Returns a list of space keys
+     */
+    public List<SpaceInfo> getSpaces(Mail2BlogBaseConfiguration mail2BlogBaseConfiguration, RoutingContext context)
+    {
+        CompiledSpaceRuleSet ruleSet = mail2BlogBaseConfiguration.getCompiledSpaceRules();
+        CompiledSpaceRule[] rules = ruleSet.getRules();
+        MetricsListener metrics = mail2BlogBaseConfiguration.getMetricsListener();
+        context.setMetricsListener(metrics);
+
+        // Match the values of every field against all literal rules at once.
+        // Errors are remembered by the context and reported when the rules of the field are evaluated.
+        List<List<String>> literalMatches = new ArrayList<List<String>>(Collections.nCopies(rules.length, (List<String>) null));
+        for (String field : CompiledSpaceRuleSet.INDEXED_FIELDS) {
+            if (ruleSet.hasLiteralRules(field)) {
+                try {
+                    List<String> values = context.getValues(field);
+                    List<String> foldedValues = context.getFoldedValues(field);
+
+                    long start = metrics.startTiming();
+                    ruleSet.matchLiterals(field, values, foldedValues, literalMatches);
+                    metrics.stopTiming(MetricNames.RuleEvaluation + ".literals", start);
+                } catch (Exception e) {
+                    log.debug("Mail2Blog: failed to read field " + field, e);
+                }
+            }
+        }
+
+        // Evaluate space rules and collect the candidate spaces.
+        LinkedHashMap<String, String> candidates = new LinkedHashMap<String, String>();
+        boolean moved = false;
+        for (int r = 0; r < rules.length && !moved; r++) {
+            CompiledSpaceRule compiledRule = rules[r];
+            SpaceRule rule = compiledRule.getRule();
+            boolean indexed = ruleSet.isIndexed(r);
             boolean ruleMatched = false;
 
-            try {
-                List<String > values = extractValues(rule, message);
-                for (String value: values) {
-                    if (evalCondition(rule, value)) {
-                        ruleMatched = true;
+            SpaceRuleStats stats = ruleSet.getStats(r);
+            if (stats != null && stats.isQuarantined()) {
+                stats.recordSkipped();
+                metrics.count(MetricNames.RulesQuarantined, 1);
+                log.debug("Mail2Blog: skipping quarantined" + describe(rule));
+                continue;
+            }
 
-                        String spaceKey = extractSpaceKey(rule, value);
+            try {
+                List<String> values;
+                if (indexed) {
+                    // Rethrow errors of the fields.
+                    for (String field : CompiledSpaceRuleSet.fieldsOf(rule.getField())) {
+                        context.getValues(field);
+                    }
 
-                        if (!seenSpaceKeys.containsKey(spaceKey)) {
-                            seenSpaceKeys.put(spaceKey, null);
+                    // Only the values that matched the rule.
+                    values = (literalMatches.get(r) != null) ? literalMatches.get(r) : Collections.<String>emptyList();
+                } else {
+                    values = context.getValues(rule.getField());
+                }
 
-                            // Get space
-                            if (!spaceKeyValidator.spaceExists(spaceKey)) {
-                                log.warn("Mai2Blog: invalid space key " + spaceKey);
-                                continue;
-                            }
+                long start = metrics.startTiming();
+                for (String value: values) {
+                    String spaceKey = indexed ? rule.getSpace() : evalRule(compiledRule, value, stats);
+                    if (spaceKey != null) {
+                        ruleMatched = true;
 
-                            // Add space.
-                            spaces.add(SpaceInfo.builder().spaceKey(spaceKey).contentType(rule.getContentType()).build());
+                        // The first rule that finds a space decides its content type.
+                        if (!candidates.containsKey(spaceKey)) {
+                            candidates.put(spaceKey, rule.getContentType());
                         }
                     }
                 }
+
+                if (!indexed && metrics.isEnabled()) {
+                    metrics.stopTiming(MetricNames.RuleEvaluation + "." + rule.getOperator(), start);
+                }
             } catch (Exception e) {
-                String info = "";
-                try {
-                    info = new ObjectMapper().writeValueAsString(rule);
-                    info = " for SpaceRule" + info;
-                } catch (Exception e2) {}
+                // The RegexExecutor starts the timeout when the regexp starts to run, so a timeout means that
+                // the rule itself took too long. A full executor is rejected instead and isn't the rule's fault.
+                boolean timeout = e.getCause() instanceof TimeoutException;
+                boolean rejected = e.getCause() instanceof RejectedExecutionException;
 
-                log.warn("Mail2Blog: (" + e.toString() + ")" + info, e);
+                // The regexp matched, only the space key couldn't be extracted.
+                // The rule still counts as matched, so that a move rule ends the evaluation.
+                if (hasCause(e, NoCapturingGroupException.class)) {
+                    ruleMatched = true;
+                }
+                if (timeout) {
+                    metrics.count(MetricNames.RegexTimeouts, 1);
+                }
+
+                log.warn("Mail2Blog: (" + e.toString() + ")" + describe(rule), e);
+
+                if (stats != null && timeout) {
+                    boolean quarantined = stats.recordTimeout(
+                        System.currentTimeMillis(),
+                        mail2BlogBaseConfiguration.getRegexpQuarantineThreshold(),
+                        mail2BlogBaseConfiguration.getRegexpQuarantineWindowInMilliseconds(),
+                        mail2BlogBaseConfiguration.getRegexpQuarantineCooldownInMilliseconds()
+                    );
+                    if (quarantined) {
+                        log.warn("Mail2Blog: quarantined after " + stats.getTimeouts() + " timeouts" + describe(rule));
+                    }
+                } else if (stats != null && !rejected && !(e instanceof MessagingException)) {
+                    stats.recordError();
+                }
             }
 
             // A move rule is always the finial rule that gets applied.
-            if (ruleMatched && SpaceRuleActions.MOVE.equals(rule.getAction())) {
-                return spaces;
+            moved = ruleMatched && SpaceRuleActions.MOVE.equals(rule.getAction());
+        }
+
+        // Check all spaces with one call to the validator.
+        LinkedHashSet<String> spaceKeys = new LinkedHashSet<String>(candidates.keySet());
+        if (!moved) {
+            spaceKeys.add(mail2BlogBaseConfiguration.getDefaultSpace());
+        }
+        long start = metrics.startTiming();
+        Map<String, Boolean> existing = spaceKeyValidator.spacesExist(spaceKeys);
+        metrics.stopTiming(MetricNames.ValidatorLookup, start);
+
+        ArrayList<SpaceInfo> spaces = new ArrayList<SpaceInfo>();
+        for (Map.Entry<String, String> candidate : candidates.entrySet()) {
+            if (!Boolean.TRUE.equals(existing.get(candidate.getKey()))) {
+                log.warn("Mai2Blog: invalid space key " + candidate.getKey());
+                continue;
             }
+
+            spaces.add(SpaceInfo.builder().spaceKey(candidate.getKey()).contentType(candidate.getValue()).build());
+        }
+
+        if (moved) {
+            return spaces;
         }
 
-        if (!spaceKeyValidator.spaceExists(mail2BlogBaseConfiguration.getDefaultSpace())) {
+        if (!Boolean.TRUE.equals(existing.get(mail2BlogBaseConfiguration.getDefaultSpace()))) {
             log.warn("Mail2Blog: Invalid default space");
         } else {
             // Add default space to spaceKeys.
@@ -91,52 +211,148 @@ public class SpaceExtractor {
     }
 
     /**
-     * Get one ore multiple possible values from the given message according to the field specified in the SpaceRule.
+     * Evaluate the condition of a rule and get the space key in one pass.
+     * For regexps the space key is taken from the same match that fulfilled the condition.
+     *
+     * @param compiledRule
+     *  The rule to evaluate.
+     *
+     * @param value
+     *  The value extracted from a field.
+     *
+     * @param stats
+     *  The stats to record the cost of the evaluation in, null to not record it.
+     *
+     * @return
+     *  The space key if the condition is fulfilled, null if not.
      */
-    private List<String> extractValues(SpaceRule rule, Message message) throws MessagingException {
-        ArrayList<String> values = new ArrayList<String>();
-
-        if (SpaceRuleFields.FROM.equals(rule.getField())) {
-            Address[] from = message.getFrom();
-            if (from != null) {
-                for (Address a : from) {
-                    String emailAddress = (a instanceof InternetAddress)
-                            ? ((InternetAddress) a).getAddress()
-                            : a.toString();
-                    values.add(emailAddress.trim());
+    private String evalRule(CompiledSpaceRule compiledRule, String value, SpaceRuleStats stats) throws Exception {
+        SpaceRule rule = compiledRule.getRule();
+
+        if (!SpaceRuleOperators.Regexp.equals(rule.getOperator())) {
+            return evalLiteral(rule, value) ? rule.getSpace() : null;
+        }
+
+        if (compiledRule.getPattern() == null) {
+            throw new Exception("failed to evaluate regexp in space rules", compiledRule.getPatternError());
+        }
+
+        // The linear engine runs inline and needs no timeout.
+        LinearRegexp linearRegexp = compiledRule.getLinearRegexp();
+        if (linearRegexp != null && LinearRegexp.supportsInput(value)) {
+            long start = System.nanoTime();
+            long cpuStart = cpuTime();
+            int[] groups = linearRegexp.find(value);
+            if (stats != null) {
+                stats.recordCpuTime(cpuTime() - cpuStart);
+                stats.recordEvaluation(System.nanoTime() - start);
+            }
+            if (groups == null) {
+                return null;
+            }
+
+            if (!compiledRule.capturesSpaceKey()) {
+                return rule.getSpace();
+            } else if (SpaceRuleSpaces.CapturingGroup0.equals(rule.getSpace())) {
+                return value.substring(groups[0], groups[1]);
+            } else {
+                if (linearRegexp.groupCount() < 1 || groups[2] < 0) {
+                    throw new Exception("failed to evaluate regexp in space rules", new NoCapturingGroupException());
                 }
+                return value.substring(groups[2], groups[3]);
             }
         }
 
-        if (SpaceRuleFields.TO.equals(rule.getField()) || SpaceRuleFields.ToCC.equals(rule.getField())) {
-            Address[] to = message.getRecipients(Message.RecipientType.TO);
-            if (to != null) {
-                for (Address a : to) {
-                    String emailAddress = (a instanceof InternetAddress)
-                            ? ((InternetAddress) a).getAddress()
-                            : a.toString();
-                    values.add(emailAddress.trim());
+        long start = System.nanoTime();
+        try {
+            return regexExecutor.call(() -> {
+                long cpuStart = cpuTime();
+                try {
+                    Matcher matcher = compiledRule.getPattern().matcher(new InterruptibleCharSequence(value));
+                    if (!matcher.find()) {
+                        return null;
+                    }
+
+                    if (!compiledRule.capturesSpaceKey()) {
+                        return rule.getSpace();
+                    } else if (SpaceRuleSpaces.CapturingGroup0.equals(rule.getSpace())) {
+                        return matcher.group(0);
+                    } else {
+                        if (matcher.groupCount() < 1 || matcher.group(1) == null) {
+                            throw new NoCapturingGroupException();
+                        }
+                        return matcher.group(1);
+                    }
+                } finally {
+                    // Also recorded for timed out evaluations, once the regexp noticed the interrupt.
+                    if (stats != null) {
+                        stats.recordCpuTime(cpuTime() - cpuStart);
+                    }
                 }
+            });
+        } catch (Exception e) {
+            throw new Exception("failed to evaluate regexp in space rules", e);
+        } finally {
+            if (stats != null) {
+                stats.recordEvaluation(System.nanoTime() - start);
             }
         }
+    }
+
+    /**
+     * Get the cpu time of the current thread, 0 if it isn't measured by the JVM.
+     */
+    private static long cpuTime() {
+        if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+            return 0;
+        }
 
-        if (SpaceRuleFields.CC.equals(rule.getField()) || SpaceRuleFields.ToCC.equals(rule.getField())) {
-            Address[] cc = message.getRecipients(Message.RecipientType.CC);
-            if (cc != null) {
-                for (Address a : cc) {
-                    String emailAddress = (a instanceof InternetAddress)
-                            ? ((InternetAddress) a).getAddress()
-                            : a.toString();
-                    values.add(emailAddress.trim());
-                }
+        try {
+            return Math.max(0, THREADS.getCurrentThreadCpuTime());
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Check if the exception or one of its causes is of the given type.
+     */
+    private static boolean hasCause(Throwable e, Class<? extends Throwable> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
             }
         }
 
-        if (SpaceRuleFields.SUBJECT.equals(rule.getField())) {
-            values.add(message.getSubject().trim());
+        return false;
+    }
+
+    /**
+     * Describe a rule for log messages.
+     */
+    private static String describe(SpaceRule rule) {
+        try {
+            return " for SpaceRule" + OBJECT_MAPPER.writeValueAsString(rule);
+        } catch (Exception e) {
+            return "";
         }
+    }
 
-        return values;
+    /**
+     * Check if given value fulfills the condition of a rule that isn't a regexp.
+     */
+    private boolean evalLiteral(SpaceRule rule, String value) {
+        if (SpaceRuleOperators.Is.equals(rule.getOperator())) {
+            return StringUtils.equalsIgnoreCase(value, rule.getValue());
+        } else if (SpaceRuleOperators.Contains.equals(rule.getOperator())) {
+            return StringUtils.containsIgnoreCase(value, rule.getValue());
+        } else if (SpaceRuleOperators.StartsWith.equals(rule.getOperator())) {
+            return StringUtils.startsWithIgnoreCase(value, rule.getValue());
+        } else if (SpaceRuleOperators.EndsWith.equals(rule.getOperator())) {
+            return StringUtils.endsWithIgnoreCase(value, rule.getValue());
+        }
+
+        return false;
     }
 
     /**
@@ -152,27 +368,22 @@ public class SpaceExtractor {
      *  True if the condition is fulfilled, false if not.
      */
     public boolean evalCondition(SpaceRule rule, String value) throws Exception {
-        if (SpaceRuleOperators.Is.equals(rule.getOperator())) {
-            return StringUtils.equalsIgnoreCase(value, rule.getValue());
-        } else if (SpaceRuleOperators.Contains.equals(rule.getOperator())) {
-            return StringUtils.containsIgnoreCase(value, rule.getValue());
-        } else if (SpaceRuleOperators.StartsWith.equals(rule.getOperator())) {
-            return StringUtils.startsWithIgnoreCase(value, rule.getValue());
-        } else if (SpaceRuleOperators.EndsWith.equals(rule.getOperator())) {
-            return StringUtils.endsWithIgnoreCase(value, rule.getValue());
-        } else if (SpaceRuleOperators.Regexp.equals(rule.getOperator())) {
-            try {
-                TimeLimiter timeLimiter = SimpleTimeLimiter.create(Executors.newSingleThreadExecutor());
-                return timeLimiter.callWithTimeout(() -> {
-                    Pattern pattern = Pattern.compile(rule.getValue(), Pattern.CASE_INSENSITIVE);
-                    return pattern.matcher(new InterruptibleCharSequence(value)).find();
-                }, 100, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                throw new Exception("failed to evaluate regexp in space rules", e);
-            }
+        if (!SpaceRuleOperators.Regexp.equals(rule.getOperator())) {
+            return evalLiteral(rule, value);
         }
 
-        return false;
+        CompiledSpaceRule compiledRule = CompiledSpaceRule.of(rule);
+        if (compiledRule.getPattern() == null) {
+            throw new Exception("failed to evaluate regexp in space rules", compiledRule.getPatternError());
+        }
+
+        try {
+            return regexExecutor.call(() ->
+                compiledRule.getPattern().matcher(new InterruptibleCharSequence(value)).find()
+            );
+        } catch (Exception e) {
+            throw new Exception("failed to evaluate regexp in space rules", e);
+        }
     }
 
     /**
@@ -181,35 +392,31 @@ public class SpaceExtractor {
      * Usually this is just rule.space, but for regexps the space key can be extracted from value.
      */
     public String extractSpaceKey(SpaceRule rule, String value) throws Exception {
-        // Extract space key with regexp.
-        if (
-            SpaceRuleOperators.Regexp.equals(rule.getOperator()) &&
-            (SpaceRuleSpaces.CapturingGroup0.equals(rule.getSpace()) || SpaceRuleSpaces.CapturingGroup1.equals(rule.getSpace()))
-        ) {
-            try {
-                TimeLimiter timeLimiter = SimpleTimeLimiter.create(Executors.newSingleThreadExecutor());
-                return timeLimiter.callWithTimeout(() -> {
-                    Pattern pattern = Pattern.compile(rule.getValue(), Pattern.CASE_INSENSITIVE);
-                    Matcher matcher = pattern.matcher(new InterruptibleCharSequence(value));
+        CompiledSpaceRule compiledRule = CompiledSpaceRule.of(rule);
+        if (!compiledRule.capturesSpaceKey()) {
+            return rule.getSpace();
+        }
 
-                    if (!matcher.find()) {
-                        throw new Exception("regexp did not match");
-                    }
+        String spaceKey;
+        try {
+            spaceKey = evalRule(compiledRule, value, null);
+        } catch (Exception e) {
+            throw new Exception("failed to extract space key with regexp", e.getCause());
+        }
 
-                    if (SpaceRuleSpaces.CapturingGroup0.equals(rule.getSpace())) {
-                        return matcher.group(0);
-                    } else {
-                        if (matcher.groupCount() < 1) {
-                            throw new Exception("no capturing group 1");
-                        }
-                        return matcher.group(1);
-                    }
-                }, 100, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                throw new Exception("failed to extract space key with regexp", e);
-            }
+        if (spaceKey == null) {
+            throw new Exception("failed to extract space key with regexp", new Exception("regexp did not match"));
         }
 
-        return rule.getSpace();
+        return spaceKey;
+    }
+
+    /**
+     * Thrown when a regexp matched, but has no capturing group 1 to extract the space key from.
+     */
+    private static class NoCapturingGroupException extends Exception {
+        NoCapturingGroupException() {
+            super("no capturing group 1");
+        }
     }
 }
@@ -58,6 +58,20 @@ public class SpaceRule {
         }
     }
 
+    /**
+     * Get the engine that evaluates the regexp of this rule with the given configuration.
+     * If the linear engine is disabled or doesn't support the regexp, the guarded engine is used.
+     *
+     * @return The engine (RegexpEngines) or null if this isn't a regexp rule.
+     */
+    public String regexpEngine(Mail2BlogBaseConfiguration mail2BlogBaseConfiguration) {
+        if (!SpaceRuleOperators.Regexp.equals(operator) || value == null) {
+            return null;
+        }
+
+        return mail2BlogBaseConfiguration.getLinearRegexpEngine() ? RegexpEngines.forRegexp(value) : RegexpEngines.Guarded;
+    }
+
     @JsonPOJOBuilder(buildMethodName = "build", withPrefix = "")
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class SpaceRuleBuilder { }
@@ -0,0 +1,159 @@
+package de.dm.mail2blog.base;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost accounting and quarantine state of one regexp space rule.
+ *
+ * The counters are cumulative since the rules were compiled. A rule is quarantined once it timed out
+ * a number of times within a window and is skipped by the SpaceExtractor until its cool-down ends.
+ * Instances are thread-safe and can be shown in an admin UI.
+ */
+public class SpaceRuleStats {
+    @Getter private final SpaceRule rule;
+
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder wallTimeInNanos = new LongAdder();
+    private final LongAdder cpuTimeInNanos = new LongAdder();
+    private final LongAdder quarantines = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    // Times (System.currentTimeMillis()) of the timeouts within the current window.
+    private final ArrayDeque<Long> recentTimeouts = new ArrayDeque<Long>();
+
+    // End of the quarantine (System.currentTimeMillis()), 0 if the rule was never quarantined.
+    private volatile long quarantinedUntil = 0;
+
+    SpaceRuleStats(SpaceRule rule) {
+        this.rule = rule;
+    }
+
+    /**
+     * Get the number of times the rule was evaluated against a value.
+     */
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    /**
+     * Get the number of evaluations that were interrupted because they took too long.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Get the number of evaluations that failed for other reasons than a timeout.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Get the wall time spent evaluating the rule, including the time waiting for the RegexExecutor.
+     */
+    public long getWallTimeInNanos() {
+        return wallTimeInNanos.sum();
+    }
+
+    /**
+     * Get the cpu time spent evaluating the rule. 0 if the JVM doesn't measure thread cpu time.
+     */
+    public long getCpuTimeInNanos() {
+        return cpuTimeInNanos.sum();
+    }
+
+    /**
+     * Get the number of times the rule was quarantined.
+     */
+    public long getQuarantines() {
+        return quarantines.sum();
+    }
+
+    /**
+     * Get the number of mails for which the rule was skipped, because it was quarantined.
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Get the end of the current or last quarantine in milliseconds since the epoch, 0 if there was none.
+     */
+    public long getQuarantinedUntil() {
+        return quarantinedUntil;
+    }
+
+    /**
+     * Check if the rule is quarantined at the given time.
+     */
+    public boolean isQuarantined(long nowInMilliseconds) {
+        return nowInMilliseconds < quarantinedUntil;
+    }
+
+    /**
+     * Check if the rule is quarantined now.
+     */
+    public boolean isQuarantined() {
+        return isQuarantined(System.currentTimeMillis());
+    }
+
+    /**
+     * End the quarantine of the rule early, e.g. after an admin fixed the input that made it time out.
+     */
+    public synchronized void release() {
+        quarantinedUntil = 0;
+        recentTimeouts.clear();
+    }
+
+    void recordEvaluation(long wallTimeInNanos) {
+        evaluations.increment();
+        this.wallTimeInNanos.add(wallTimeInNanos);
+    }
+
+    void recordCpuTime(long cpuTimeInNanos) {
+        if (cpuTimeInNanos > 0) {
+            this.cpuTimeInNanos.add(cpuTimeInNanos);
+        }
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void recordSkipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Record a timeout and quarantine the rule if it timed out too often.
+     *
+     * @param threshold The number of timeouts within the window that quarantine the rule, 0 to never quarantine it.
+     * @return True if the rule was quarantined by this timeout.
+     */
+    synchronized boolean recordTimeout(long nowInMilliseconds, int threshold, long windowInMilliseconds, long cooldownInMilliseconds) {
+        timeouts.increment();
+        if (threshold <= 0 || isQuarantined(nowInMilliseconds)) {
+            return false;
+        }
+
+        while (!recentTimeouts.isEmpty() && recentTimeouts.peekFirst() <= nowInMilliseconds - windowInMilliseconds) {
+            recentTimeouts.pollFirst();
+        }
+        recentTimeouts.addLast(nowInMilliseconds);
+
+        if (recentTimeouts.size() < threshold) {
+            return false;
+        }
+
+        recentTimeouts.clear();
+        quarantinedUntil = nowInMilliseconds + cooldownInMilliseconds;
+        quarantines.increment();
+        return true;
+    }
+}
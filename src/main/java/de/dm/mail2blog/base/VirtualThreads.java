@@ -0,0 +1,70 @@
+package de.dm.mail2blog.base;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors that run every task on a new virtual thread, if the JVM supports them (Java 21+).
+ * The library is built for Java 8, so the virtual thread API is looked up by reflection.
+ * On older JVMs a pool of platform threads is used instead.
+ */
+@Slf4j
+public abstract class VirtualThreads {
+    // Executors.newVirtualThreadPerTaskExecutor() or null if the JVM has no virtual threads.
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findFactoryMethod();
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+    /**
+     * Check if the JVM supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread.
+     * If virtual threads aren't available, create a fixed pool of daemon threads instead.
+     *
+     * @param fallbackParallelism The number of threads of the fallback pool.
+     */
+    public static ExecutorService newExecutor(int fallbackParallelism) {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                log.warn("Mail2Blog: failed to create virtual thread executor, using platform threads", e);
+            }
+        }
+
+        return Executors.newFixedThreadPool(fallbackParallelism, new DaemonThreadFactory());
+    }
+
+    private static Method findFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the fallback pool and other pools of the library.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "mail2blog-worker-" + poolNumber + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
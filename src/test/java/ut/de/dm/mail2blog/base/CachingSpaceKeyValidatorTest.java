@@ -0,0 +1,183 @@
+package ut.de.dm.mail2blog.base;
+
+import com.google.common.base.Ticker;
+import de.dm.mail2blog.base.CachingSpaceKeyValidator;
+import de.dm.mail2blog.base.ISpaceKeyValidator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingSpaceKeyValidatorTest {
+    private final AtomicLong time = new AtomicLong();
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+    private final AtomicInteger bulkCalls = new AtomicInteger();
+    private CachingSpaceKeyValidator validator;
+
+    @Before
+    public void setUp() {
+        ISpaceKeyValidator delegate = new ISpaceKeyValidator() {
+            @Override
+            public boolean spaceExists(String spaceKey) {
+                calls.merge(spaceKey, 1, Integer::sum);
+                return spaceKey.startsWith("existing");
+            }
+
+            @Override
+            public Map<String, Boolean> spacesExist(Collection<String> spaceKeys) {
+                bulkCalls.incrementAndGet();
+                Map<String, Boolean> result = new HashMap<String, Boolean>();
+                for (String spaceKey : spaceKeys) {
+                    result.put(spaceKey, spaceKey.startsWith("existing"));
+                }
+                return result;
+            }
+        };
+
+        validator = CachingSpaceKeyValidator.builder()
+            .delegate(delegate)
+            .positiveTtlInMilliseconds(1000)
+            .negativeTtlInMilliseconds(100)
+            .refreshAheadFactor(0.5)
+            .refreshExecutor(Runnable::run)
+            .ticker(new Ticker() {
+                @Override
+                public long read() {
+                    return time.get();
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Test that answers are cached for their ttl.
+     */
+    @Test
+    public void testTtl() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(validator.spaceExists("existing"));
+            assertFalse(validator.spaceExists("missing"));
+        }
+
+        assertEquals(1, (int) calls.get("existing"));
+        assertEquals(1, (int) calls.get("missing"));
+        assertEquals(18, validator.stats().hitCount());
+        assertEquals(2, validator.stats().missCount());
+
+        // The negative answer expires first.
+        advance(200);
+        validator.spaceExists("existing");
+        validator.spaceExists("missing");
+        assertEquals(1, (int) calls.get("existing"));
+        assertEquals(2, (int) calls.get("missing"));
+    }
+
+    /**
+     * Test that entries are refreshed when they're used shortly before they expire.
+     */
+    @Test
+    public void testRefreshAhead() {
+        assertTrue(validator.spaceExists("existing"));
+
+        // Past half of the ttl, the entry is refreshed, but the cached answer is used.
+        advance(600);
+        assertTrue(validator.spaceExists("existing"));
+        assertEquals(2, (int) calls.get("existing"));
+
+        // The refresh restarted the ttl.
+        advance(600);
+        assertTrue(validator.spaceExists("existing"));
+        assertEquals(3, (int) calls.get("existing"));
+        assertEquals(1, validator.stats().missCount());
+        assertEquals(2, validator.stats().hitCount());
+    }
+
+    /**
+     * Test that the bulk check answers cached keys from the cache and asks for the others at once.
+     */
+    @Test
+    public void testSpacesExist() {
+        validator.spaceExists("existing1");
+
+        Map<String, Boolean> result = validator.spacesExist(Arrays.asList("existing1", "existing2", "missing"));
+
+        assertEquals(Arrays.asList("existing1", "existing2", "missing"), new ArrayList<String>(result.keySet()));
+        assertEquals(Arrays.asList(true, true, false), new ArrayList<Boolean>(result.values()));
+        assertEquals(1, (int) calls.get("existing1"));
+        assertEquals(1, bulkCalls.get());
+        assertEquals(1, validator.stats().hitCount());
+        assertEquals(3, validator.stats().missCount());
+
+        // Now everything is cached.
+        validator.spacesExist(Arrays.asList("existing1", "existing2", "missing"));
+        assertEquals(1, bulkCalls.get());
+    }
+
+    /**
+     * Test that concurrent misses of the same key ask the delegate only once.
+     */
+    @Test(timeout = 10000)
+    public void testConcurrentMissesShareLoad() throws Exception {
+        AtomicInteger slowCalls = new AtomicInteger();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CachingSpaceKeyValidator slowValidator = CachingSpaceKeyValidator.builder()
+            .delegate(spaceKey -> {
+                slowCalls.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            })
+            .build();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        AtomicInteger answers = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                if (slowValidator.spaceExists("slow")) {
+                    answers.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // Let the delegate answer once all threads wait.
+        entered.await();
+        while (threads.stream().anyMatch(thread -> thread.getState() == Thread.State.RUNNABLE)) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, slowCalls.get());
+        assertEquals(4, answers.get());
+    }
+
+    private void advance(long milliseconds) {
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(milliseconds));
+    }
+}
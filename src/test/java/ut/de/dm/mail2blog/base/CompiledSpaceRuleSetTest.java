@@ -0,0 +1,115 @@
+package ut.de.dm.mail2blog.base;
+
+import de.dm.mail2blog.base.CompiledSpaceRuleSet;
+import de.dm.mail2blog.base.SpaceRule;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CompiledSpaceRuleSetTest {
+    private static final String[] OPERATORS = new String[]{"is", "start", "end", "contains"};
+
+    /**
+     * Check that indexed rules match the same values as StringUtils.*IgnoreCase.
+     */
+    @Test
+    public void testMatchesLikeStringUtils() {
+        Random random = new Random(42);
+
+        for (int round = 0; round < 50; round++) {
+            SpaceRule[] rules = new SpaceRule[20];
+            for (int i = 0; i < rules.length; i++) {
+                rules[i] = SpaceRule.builder()
+                    .field("to")
+                    .operator(OPERATORS[random.nextInt(OPERATORS.length)])
+                    .value(randomString(random, 4))
+                    .action("copy")
+                    .space("space" + i)
+                    .build();
+            }
+
+            List<String> values = new ArrayList<String>();
+            for (int i = 0; i < 30; i++) {
+                values.add(randomString(random, 8));
+            }
+
+            CompiledSpaceRuleSet ruleSet = CompiledSpaceRuleSet.compile(rules, false);
+            List<List<String>> matches = new ArrayList<List<String>>(Collections.nCopies(rules.length, (List<String>) null));
+            ruleSet.matchLiterals("to", values, matches);
+
+            for (int i = 0; i < rules.length; i++) {
+                assertTrue(ruleSet.isIndexed(i));
+
+                List<String> expected = new ArrayList<String>();
+                for (String value : values) {
+                    if (matches(rules[i], value)) {
+                        expected.add(value);
+                    }
+                }
+
+                List<String> actual = matches.get(i) == null ? new ArrayList<String>() : matches.get(i);
+                assertEquals("Wrong matches for rule " + rules[i], expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Check that to/cc rules are indexed for both fields and that regexps are not indexed.
+     */
+    @Test
+    public void testFields() {
+        SpaceRule[] rules = new SpaceRule[]{
+            SpaceRule.builder().field("to/cc").operator("end").value("@example.org").action("copy").space("a").build(),
+            SpaceRule.builder().field("subject").operator("regexp").value("[0-9]+").action("copy").space("b").build(),
+        };
+
+        CompiledSpaceRuleSet ruleSet = CompiledSpaceRuleSet.compile(rules, false);
+
+        assertTrue(ruleSet.hasLiteralRules("to"));
+        assertTrue(ruleSet.hasLiteralRules("cc"));
+        assertFalse(ruleSet.hasLiteralRules("from"));
+        assertFalse(ruleSet.hasLiteralRules("subject"));
+        assertTrue(ruleSet.isIndexed(0));
+        assertFalse(ruleSet.isIndexed(1));
+
+        List<List<String>> matches = new ArrayList<List<String>>(Collections.nCopies(rules.length, (List<String>) null));
+        ruleSet.matchLiterals("to", Arrays.asList("alice@EXAMPLE.org", "bob@example.com"), matches);
+        ruleSet.matchLiterals("cc", Arrays.asList("carol@example.org"), matches);
+
+        assertEquals(Arrays.asList("alice@EXAMPLE.org", "carol@example.org"), matches.get(0));
+    }
+
+    private static boolean matches(SpaceRule rule, String value) {
+        switch (rule.getOperator()) {
+            case "is": return StringUtils.equalsIgnoreCase(value, rule.getValue());
+            case "start": return StringUtils.startsWithIgnoreCase(value, rule.getValue());
+            case "end": return StringUtils.endsWithIgnoreCase(value, rule.getValue());
+            default: return StringUtils.containsIgnoreCase(value, rule.getValue());
+        }
+    }
+
+    /**
+     * Create a string over a small alphabet, so that rules often match.
+     */
+    private static String randomString(Random random, int maxLength) {
+        String alphabet = "abAB@.";
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return result.toString();
+    }
+}
@@ -6,6 +6,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
 import static org.junit.Assert.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -67,5 +73,96 @@ public class FileTypeBucketTest
         assertTrue("Png should be allowed", copy.checkMimeType("image/png"));
         assertFalse("Gif shouldn't be allowed", copy.checkMimeType("image/gif"));
     }
-}
 
+    /**
+     * Check that the order of the CSV is kept and decides the preferred extension.
+     */
+    @Test
+    public void testOrderAndLookups() throws Exception
+    {
+        String csv = "jpg image/jpeg\npng image/png\njpeg image/jpeg\nxml text/xml\nxml application/xml\n";
+        FileTypeBucket fileTypeBucket = FileTypeBucket.fromString(csv);
+
+        assertEquals("jpg image/jpeg\njpeg image/jpeg\npng image/png\nxml text/xml\nxml application/xml\n", fileTypeBucket.toString());
+        assertEquals("jpg", fileTypeBucket.getPreferredExtension("image/jpeg"));
+        assertEquals(Arrays.asList("jpg", "jpeg"), new ArrayList<String>(fileTypeBucket.getExtensions("image/jpeg")));
+        assertEquals("dm-logo.jpg", fileTypeBucket.saneFilename("dm-logo", "image/jpeg"));
+        assertEquals("image/jpeg", fileTypeBucket.getMimeType("jpeg"));
+        assertEquals("text/xml", fileTypeBucket.getMimeType("xml"));
+        assertNull(fileTypeBucket.getMimeType("gif"));
+        assertNull(fileTypeBucket.getPreferredExtension("image/gif"));
+        assertTrue(fileTypeBucket.getExtensions("image/gif").isEmpty());
+    }
+
+    /**
+     * Check that file names are sanitized like with the former regexp based implementation.
+     */
+    @Test
+    public void testFileNameLikeRegexp() throws Exception
+    {
+        FileTypeBucket fileTypeBucket = FileTypeBucket.fromString("jpg image/jpeg\njpeg image/jpeg\ngif image/gif");
+        String[] mimeTypes = new String[]{"image/jpeg", "image/gif", "text/html"};
+        String alphabet = "aZ09.-_ /\\:?*\u00e4\u00df\u20acJjPpEeGg";
+        Random random = new Random(2047);
+
+        for (int round = 0; round < 5000; round++) {
+            StringBuilder filename = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int i = 0; i < length; i++) {
+                filename.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            String mimeType = mimeTypes[random.nextInt(mimeTypes.length)];
+            assertEquals(
+                saneFilenameWithRegexp(fileTypeBucket, filename.toString(), mimeType),
+                fileTypeBucket.saneFilename(filename.toString(), mimeType)
+            );
+        }
+    }
+
+    /**
+     * Check that encoded file names are decoded and that long file names are cut.
+     */
+    @Test
+    public void testEncodedAndLongFileNames() throws Exception
+    {
+        FileTypeBucket fileTypeBucket = FileTypeBucket.fromString("pdf application/pdf");
+
+        assertEquals("Gr__e.pdf", fileTypeBucket.saneFilename("=?UTF-8?B?R3LDvMOfZS5wZGY=?=", "application/pdf"));
+        assertEquals("Gr__e.pdf", fileTypeBucket.saneFilename("=?ISO-8859-1?Q?Gr=FC=DFe.pdf?=", "application/pdf"));
+        assertEquals("Gr__e.pdf", fileTypeBucket.saneFilename("UTF-8''Gr%C3%BC%C3%9Fe.pdf", "application/pdf"));
+        assertEquals("Bob_s_100_.pdf", fileTypeBucket.saneFilename("Bob's 100%.pdf", "application/pdf"));
+        assertEquals("_.pdf", fileTypeBucket.saneFilename("\ud83d\ude00.pdf", "application/pdf"));
+        assertEquals("_notes_final_50_.pdf", fileTypeBucket.saneFilename("_notes'final'50%.pdf", "application/pdf"));
+        assertEquals("-a_b__41.pdf", fileTypeBucket.saneFilename("-a'b'%41.pdf", "application/pdf"));
+
+        String stem = String.join("", Collections.nCopies(300, "a"));
+        String withExtension = fileTypeBucket.saneFilename(stem + ".PDF", "application/pdf");
+        assertEquals(255, withExtension.length());
+        assertTrue(withExtension.endsWith("a.PDF"));
+
+        String appended = fileTypeBucket.saneFilename(stem + ".exe", "application/pdf");
+        assertEquals(255, appended.length());
+        assertTrue(appended.endsWith("a.pdf"));
+
+        assertEquals(255, fileTypeBucket.saneFilename(stem, "text/html").length());
+    }
+
+    /**
+     * The implementation of saneFilename before it was replaced by a single pass sanitizer.
+     */
+    private static String saneFilenameWithRegexp(FileTypeBucket fileTypeBucket, String filename, String mimeType)
+    {
+        filename = filename.replaceAll("[^a-zA-Z0-9.\\-_]", "_");
+
+        Set<String> validExtensions = fileTypeBucket.getExtensions(mimeType);
+        if (!validExtensions.isEmpty()) {
+            int index = filename.lastIndexOf('.');
+            if (index <= 0 || index >= filename.length() - 1 || !validExtensions.contains(filename.substring(index + 1).toLowerCase())) {
+                filename += "." + fileTypeBucket.getPreferredExtension(mimeType);
+            }
+        }
+
+        return filename;
+    }
+}
@@ -10,6 +10,8 @@ import org.owasp.html.PolicyFactory;
 import java.util.Scanner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 /**
  * Test the html filter. Just some basics tests to make sure the configuration flags are properly interpreted.
@@ -129,4 +131,17 @@ public class HtmlFilterTest {
         assertEquals("Hello &gt;World This is a test. Click Me<table><tbody><tr><td></td></tr></tbody></table>", filter.sanitize(HTML_SAMPLE));
         assertEquals(COMPLEX_HTML_TABLE_SAMPLE.replaceAll("\\s+", ""), filter.sanitize(COMPLEX_HTML_TABLE_SAMPLE).replaceAll("\\s+", ""));
     }
+
+    /**
+     * Test that configurations with the same flags share one policy factory.
+     */
+    @Test
+    public void testPolicyFactoryIsShared() throws Exception {
+        PolicyFactory filter1 = HtmlFilterFactory.makeHtmlFilter(Mail2BlogBaseConfiguration.builder().htmlFilterImages(false).build());
+        PolicyFactory filter2 = HtmlFilterFactory.makeHtmlFilter(Mail2BlogBaseConfiguration.builder().htmlFilterImages(false).build());
+        PolicyFactory filter3 = HtmlFilterFactory.makeHtmlFilter(Mail2BlogBaseConfiguration.builder().build());
+
+        assertSame(filter1, filter2);
+        assertNotSame(filter1, filter3);
+    }
 }
@@ -0,0 +1,146 @@
+package ut.de.dm.mail2blog.base;
+
+import de.dm.mail2blog.base.LinearRegexp;
+import de.dm.mail2blog.base.RegexpEngines;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LinearRegexpTest {
+    private static final String[] REGEXPS = new String[]{
+        "", "a", "abc", "a|b|cd", "(a|ab)(c|bcd)(d*)", "a*", "a+?", "a{2}", "a{2,}", "a{1,3}?", "x*y",
+        "^ab", "ab$", "^$", "[a-c]+", "[^a-c]+", "[\\d_]+", "\\w+@\\w+\\.org", "\\s+", "\\S+", "\\D\\W",
+        ".+", ".*?b", "(?:ab)+", "(a)|(b)", "(?:(a)|b)+", "project-([a-z]+)", "([0-9])+", "\\.\\-\\[",
+        "\\x41\\u0042", "[]a]", "[a-]", "(a|b)*c", "[A-Z]{2,4}-\\d+", "\\t\\n",
+    };
+
+    private static final String[] INPUTS = new String[]{
+        "", "a", "ab", "abcd", "AB", "aaa", "xxxy", "ab\n", "ab\r\n", "ab\n\n", "\n", "c", "Test-123",
+        "alice@example.org", "project-Alpha", "a b\tc", "ABC-1234", "ab]c", "-a", "AbAbC", "\t\n",
+    };
+
+    /**
+     * Check some hand picked regexps against java.util.regex.
+     */
+    @Test
+    public void testMatchesLikeJavaRegex() {
+        for (String regexp : REGEXPS) {
+            LinearRegexp linearRegexp = LinearRegexp.compile(regexp);
+            assertNotNull("Expected regexp to be supported: " + regexp, linearRegexp);
+
+            for (String input : INPUTS) {
+                assertSameMatch(regexp, linearRegexp, input);
+            }
+        }
+    }
+
+    /**
+     * Check random regexps against java.util.regex.
+     */
+    @Test
+    public void testRandomRegexps() {
+        Random random = new Random(4711);
+        String[] atoms = new String[]{"a", "b", "A", ".", "[ab]", "[^a]", "\\d", "\\w", "^", "$", "-", "1"};
+        String[] quantifiers = new String[]{"", "", "", "*", "+", "?", "*?", "+?", "{1,2}", "{2}"};
+
+        for (int round = 0; round < 2000; round++) {
+            StringBuilder regexp = new StringBuilder();
+            int parts = 1 + random.nextInt(5);
+            for (int i = 0; i < parts; i++) {
+                int kind = random.nextInt(10);
+                String atom = atoms[random.nextInt(atoms.length)];
+                if (kind == 0) {
+                    atom = "(" + atom + atoms[random.nextInt(atoms.length)] + ")";
+                } else if (kind == 1) {
+                    atom = "(?:" + atom + "|" + atoms[random.nextInt(atoms.length)] + ")";
+                } else if (kind == 2) {
+                    atom = "(" + atom + "|" + atoms[random.nextInt(atoms.length)] + ")";
+                }
+                regexp.append(atom).append(quantifiers[random.nextInt(quantifiers.length)]);
+            }
+
+            try {
+                Pattern.compile(regexp.toString());
+            } catch (PatternSyntaxException e) {
+                continue;
+            }
+
+            LinearRegexp linearRegexp = LinearRegexp.compile(regexp.toString());
+            if (linearRegexp == null) {
+                continue;
+            }
+
+            for (int i = 0; i < 10; i++) {
+                StringBuilder input = new StringBuilder();
+                int length = random.nextInt(8);
+                for (int j = 0; j < length; j++) {
+                    input.append("abAB1-\n".charAt(random.nextInt(7)));
+                }
+                assertSameMatch(regexp.toString(), linearRegexp, input.toString());
+            }
+        }
+    }
+
+    /**
+     * Check that regexps outside of the supported subset are rejected.
+     */
+    @Test
+    public void testUnsupported() {
+        String[] unsupported = new String[]{
+            "(a)\\1", "(?=a)", "(?i)a", "a++", "\\bword", "\\p{L}", "(a*)*", "(a?)+", "[a&&b]", "[a[b]]", "\\Qa\\E",
+            "a{1,99999}", "(?<name>a)",
+        };
+
+        for (String regexp : unsupported) {
+            assertNull("Expected regexp to be unsupported: " + regexp, LinearRegexp.compile(regexp));
+            assertEquals(RegexpEngines.Guarded, RegexpEngines.forRegexp(regexp));
+        }
+
+        assertEquals(RegexpEngines.Linear, RegexpEngines.forRegexp("project-([a-z]+)"));
+    }
+
+    /**
+     * Check that a regexp that makes java.util.regex backtrack exponentially finishes quickly.
+     */
+    @Test(timeout = 5000)
+    public void testNoCatastrophicBacktracking() {
+        String input = String.join("", Collections.nCopies(10000, "x"));
+        LinearRegexp linearRegexp = LinearRegexp.compile("(x+x+)+y");
+
+        assertNotNull(linearRegexp);
+        assertNull(linearRegexp.find(input));
+    }
+
+    private static void assertSameMatch(String regexp, LinearRegexp linearRegexp, String input) {
+        Matcher matcher = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE).matcher(input);
+        int[] expected = null;
+        if (matcher.find()) {
+            expected = new int[2 * (matcher.groupCount() + 1)];
+            for (int g = 0; g <= matcher.groupCount(); g++) {
+                expected[2 * g] = matcher.start(g);
+                expected[2 * g + 1] = matcher.end(g);
+            }
+        }
+
+        int[] actual = linearRegexp.find(input);
+        assertArrayEquals(
+            "Different match for regexp " + regexp + " on input " + Arrays.toString(input.toCharArray())
+                + ": expected " + Arrays.toString(expected) + " but got " + Arrays.toString(actual),
+            expected,
+            actual
+        );
+    }
+}
@@ -0,0 +1,203 @@
+package ut.de.dm.mail2blog.base;
+
+import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
+import de.dm.mail2blog.base.MailBatchProcessor;
+import de.dm.mail2blog.base.MailBatchResult;
+import de.dm.mail2blog.base.SpaceExtractor;
+import de.dm.mail2blog.base.VirtualThreads;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MailBatchProcessorTest {
+    private ExecutorService executor;
+    private Mail2BlogBaseConfiguration mail2BlogBaseConfiguration;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder().defaultSpace("defaultSpace").build();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test that results are returned in the order of the messages and a failing message doesn't stop the batch.
+     */
+    @Test
+    public void testOrderedWithErrorIsolation() throws Exception {
+        // Validator that fails for the space "broken".
+        SpaceExtractor spaceExtractor = new SpaceExtractor(spaceKey -> {
+            if (spaceKey.equals("broken")) {
+                throw new IllegalStateException("validator failed");
+            }
+            return true;
+        });
+
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(createMessage("Message " + i));
+        }
+
+        List<MailBatchResult> results = MailBatchProcessor.builder()
+            .mail2BlogBaseConfiguration(mail2BlogBaseConfiguration)
+            .spaceExtractor(spaceExtractor)
+            .executor(executor)
+            .maxInFlight(3)
+            .build()
+            .process(messages)
+            .collect(Collectors.toList());
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++) {
+            MailBatchResult result = results.get(i);
+            assertEquals(messages.get(i), result.getMessage());
+            assertNull(result.getError());
+            assertEquals("alice@example.org", result.getSenderEmail());
+            assertEquals("defaultSpace", result.getSpaces().get(0).getSpaceKey());
+            assertEquals("<p>Message " + i + "</p>", result.getSanitizedHtml().get(0).trim());
+        }
+
+        Mail2BlogBaseConfiguration brokenDefaultSpace = Mail2BlogBaseConfiguration.builder().defaultSpace("broken").build();
+        MailBatchResult failed = MailBatchProcessor.builder()
+            .mail2BlogBaseConfiguration(brokenDefaultSpace)
+            .spaceExtractor(spaceExtractor)
+            .executor(executor)
+            .build()
+            .process(Stream.of(createMessage("broken")))
+            .findFirst()
+            .get();
+
+        assertNotNull(failed.getError());
+        assertNull(failed.getContent());
+    }
+
+    /**
+     * Test that all results are returned in unordered mode and that messages are pulled lazily.
+     */
+    @Test
+    public void testUnorderedAndBounded() throws Exception {
+        AtomicInteger pulled = new AtomicInteger();
+        Stream<Message> messages = IntStream.range(0, 50).mapToObj(i -> {
+            pulled.incrementAndGet();
+            return createMessage("Message " + i);
+        });
+
+        Stream<MailBatchResult> results = MailBatchProcessor.builder()
+            .mail2BlogBaseConfiguration(mail2BlogBaseConfiguration)
+            .spaceExtractor(new SpaceExtractor(spaceKey -> true))
+            .executor(executor)
+            .maxInFlight(5)
+            .ordered(false)
+            .build()
+            .process(messages);
+
+        Set<String> subjects = new HashSet<String>();
+        results.forEach(result -> {
+            assertTrue("Expected at most maxInFlight messages to be pulled ahead", pulled.get() <= subjects.size() + 5);
+            subjects.add(getSubject(result.getMessage()));
+        });
+
+        assertEquals(50, subjects.size());
+    }
+
+    /**
+     * Test that an Error thrown while processing a message becomes an error result in unordered mode,
+     * instead of blocking the consumer, and that the processor works without an executor.
+     */
+    @Test(timeout = 10000)
+    public void testUnorderedError() throws Exception {
+        SpaceExtractor spaceExtractor = new SpaceExtractor(spaceKey -> {
+            if (spaceKey.equals("broken")) {
+                throw new StackOverflowError("deep regexp");
+            }
+            return true;
+        });
+
+        Mail2BlogBaseConfiguration brokenDefaultSpace = Mail2BlogBaseConfiguration.builder().defaultSpace("broken").build();
+        List<MailBatchResult> results = MailBatchProcessor.builder()
+            .mail2BlogBaseConfiguration(brokenDefaultSpace)
+            .spaceExtractor(spaceExtractor)
+            .maxInFlight(2)
+            .ordered(false)
+            .build()
+            .process(IntStream.range(0, 5).mapToObj(i -> createMessage("Message " + i)))
+            .collect(Collectors.toList());
+
+        assertEquals(5, results.size());
+        for (MailBatchResult result : results) {
+            assertNotNull(result.getError());
+            assertTrue(result.getError().getCause() instanceof StackOverflowError);
+        }
+    }
+
+    /**
+     * Test processing on virtual threads, or on the fallback pool on older JVMs.
+     */
+    @Test
+    public void testVirtualThreads() throws Exception {
+        ExecutorService virtualThreads = VirtualThreads.newExecutor(2);
+        try {
+            List<MailBatchResult> results = MailBatchProcessor.builder()
+                .mail2BlogBaseConfiguration(mail2BlogBaseConfiguration)
+                .spaceExtractor(new SpaceExtractor(spaceKey -> true))
+                .executor(virtualThreads)
+                .maxInFlight(100)
+                .build()
+                .process(IntStream.range(0, 200).mapToObj(i -> createMessage("Message " + i)))
+                .collect(Collectors.toList());
+
+            assertEquals(200, results.size());
+            assertEquals("Message 199", getSubject(results.get(199).getMessage()));
+        } finally {
+            virtualThreads.shutdownNow();
+        }
+    }
+
+    private static Message createMessage(String text) {
+        try {
+            MimeMessage message = new MimeMessage((Session) null);
+            message.setFrom(new InternetAddress("alice@example.org"));
+            message.setSubject(text);
+            message.setContent("<p>" + text + "</p>", "text/html; charset=utf-8");
+            message.saveChanges();
+            return message;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getSubject(Message message) {
+        try {
+            return message.getSubject();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
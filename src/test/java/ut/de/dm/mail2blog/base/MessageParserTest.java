@@ -1,23 +1,56 @@
 package ut.de.dm.mail2blog.base;
 
+import com.google.common.cache.CacheStats;
+import com.google.common.io.ByteStreams;
+import de.dm.mail2blog.base.AttachmentRejection;
+import de.dm.mail2blog.base.AttachmentRejectionReasons;
 import de.dm.mail2blog.base.FileTypeBucket;
+import de.dm.mail2blog.base.HtmlFilterFactory;
 import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
 import de.dm.mail2blog.base.MailPartData;
+import de.dm.mail2blog.base.MessageLimitExceededException;
 import de.dm.mail2blog.base.MessageParser;
+import de.dm.mail2blog.base.MetricNames;
+import org.apache.commons.text.StringEscapeUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.owasp.html.HtmlChangeListener;
+import org.owasp.html.PolicyFactory;
 
+import javax.activation.DataHandler;
 import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePartDataSource;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 
 import static java.lang.Math.abs;
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MessageParserTest {
@@ -57,6 +90,26 @@ public class MessageParserTest {
         assertEquals("Expected default charset, when an invalid/unknown charset is given in content-type.", Charset.defaultCharset(), invalid);
     }
 
+    /**
+     * Test that charsets are resolved through the cache, including unknown and illegal names.
+     */
+    @Test
+    public void testGetCharsetFromHeaderCached() {
+        MessageParser messageParser = new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder().build());
+
+        assertEquals(Charset.forName("windows-1252"), messageParser.getCharsetFromHeader("text/plain; format=flowed; CHARSET=\"windows-1252\""));
+        assertEquals(Charset.defaultCharset(), messageParser.getCharsetFromHeader("text/plain; xcharset=utf-16"));
+        assertEquals(Charset.defaultCharset(), messageParser.getCharsetFromHeader("text/plain; charset=-illegal"));
+
+        CacheStats before = MessageParser.getCharsetCacheStats();
+        messageParser.getCharsetFromHeader("text/plain; charset=unknown-charset-4711");
+        messageParser.getCharsetFromHeader("text/plain; charset=unknown-charset-4711");
+        CacheStats after = MessageParser.getCharsetCacheStats().minus(before);
+
+        assertEquals(1, after.missCount());
+        assertEquals(1, after.hitCount());
+    }
+
     /**
      * Check that the content of the example mail is properly extracted.
      * When using the default values.
@@ -119,6 +172,31 @@ public class MessageParserTest {
         assertTrue("Could not find - ALANA<br />\\n- alverde in text", textPart.getHtml().contains("- ALANA<br />\n- alverde"));
     }
 
+    /**
+     * Check that the stages of parsing are reported to the metrics listener.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder().metricsListener(metrics).build()).getContent();
+
+        assertEquals(Long.valueOf(1), metrics.timings.get(MetricNames.TextDecoding));
+        assertEquals(Long.valueOf(1), metrics.timings.get(MetricNames.AttachmentCopy));
+        assertTrue(metrics.timings.get(MetricNames.MultipartWalking) >= 1);
+        assertTrue(metrics.counters.get(MetricNames.BytesDecoded) > 2155);
+        assertNull(metrics.counters.get(MetricNames.PartsDropped));
+
+        RecordingMetricsListener rejected = new RecordingMetricsListener();
+        new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder()
+            .fileTypeBucket(FileTypeBucket.fromString("jpg image/jpg"))
+            .metricsListener(rejected)
+            .build()
+        ).getContent();
+
+        assertEquals(Long.valueOf(1), rejected.counters.get(MetricNames.AttachmentsRejected));
+        assertEquals(Long.valueOf(1), rejected.counters.get(MetricNames.PartsDropped));
+    }
+
     /**
      * Check that no attachment is added if gif image/gif is not in allowed file types.
      */
@@ -189,5 +267,481 @@ public class MessageParserTest {
         assertEquals("Failed to get user", "alice@example.org", messageParser.getSenderEmail());
     }
 
-}
+    /**
+     * Check that attachments larger than the spill threshold are stored in a temporary file,
+     * that is deleted when the part data is closed.
+     */
+    @Test
+    public void testSpillAttachmentToDisk() throws Exception {
+        File spillDirectory = Files.createTempDirectory("mail2blog-test").toFile();
+
+        Mail2BlogBaseConfiguration inMemory = Mail2BlogBaseConfiguration.builder()
+            .spillThresholdInBytes(-1)
+            .build();
+        Mail2BlogBaseConfiguration spilled = Mail2BlogBaseConfiguration.builder()
+            .spillThresholdInBytes(1024)
+            .spillDirectory(spillDirectory)
+            .build();
+
+        MailPartData expected = new MessageParser(exampleMessage, inMemory).getContent().get(1);
+        MailPartData actual = new MessageParser(exampleMessage, spilled).getContent().get(1);
+
+        assertEquals("Expected one temporary file", 1, spillDirectory.listFiles().length);
+        assertEquals(2155, actual.getAttachementData().getFileSize());
+        assertArrayEquals(ByteStreams.toByteArray(expected.getStream()), ByteStreams.toByteArray(actual.getStream()));
+
+        actual.close();
+        assertEquals("Expected temporary file to be deleted", 0, spillDirectory.listFiles().length);
+        spillDirectory.delete();
+    }
+
+    /**
+     * Check that the temporary files of attachments extracted before a per message limit was exceeded are deleted.
+     */
+    @Test
+    public void testSpilledAttachmentsDeletedWhenLimitExceeded() throws Exception {
+        File spillDirectory = Files.createTempDirectory("mail2blog-test").toFile();
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart("text"));
+        multipart.addBodyPart(attachment("a.gif", "image/gif", 2000));
+        multipart.addBodyPart(attachment("b.gif", "image/gif", 2000));
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        assertLimitExceeded(message, Mail2BlogBaseConfiguration.builder()
+            .maxAllowedAttachmentSizeInBytes(10000)
+            .maxDecodedBytesPerMessage(3000)
+            .spillThresholdInBytes(1024)
+            .spillDirectory(spillDirectory)
+        );
+
+        assertEquals("Expected temporary files to be deleted", 0, spillDirectory.listFiles().length);
+        spillDirectory.delete();
+    }
+
+    /**
+     * Check that in lazy mode the same content is returned, when it's requested.
+     */
+    @Test
+    public void testLazyContent() throws Exception {
+        List<MailPartData> eager = new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder().build()).getContent();
+        List<MailPartData> lazy = new MessageParser(
+            exampleMessage,
+            Mail2BlogBaseConfiguration.builder().lazyContent(true).build()
+        ).getContent();
+
+        assertEquals(2, lazy.size());
+        assertEquals("text/html", lazy.get(0).getContentType());
+        assertEquals(eager.get(0).getHtml(), lazy.get(0).getHtml());
+
+        MailPartData attachment = lazy.get(1);
+        assertEquals("dm-logo.gif", attachment.getAttachementData().getFilename());
+        assertTrue("Expected an estimated file size", attachment.getAttachementData().getFileSize() > 0);
+        assertArrayEquals(ByteStreams.toByteArray(eager.get(1).getStream()), ByteStreams.toByteArray(attachment.getStream()));
+    }
+
+    /**
+     * Check that in lazy mode the size limit is enforced while reading the stream.
+     * The limit is below the size of the attachment (2155 bytes), but above the minimum size
+     * derived from the declared size, so that the attachment isn't rejected by the pre-scan.
+     */
+    @Test(expected = IOException.class)
+    public void testLazyContentWithMaxAttachmentSize() throws Exception {
+        List<MailPartData> content = new MessageParser(
+            exampleMessage,
+            Mail2BlogBaseConfiguration.builder().lazyContent(true).maxAllowedAttachmentSizeInBytes(2000).build()
+        ).getContent();
+
+        ByteStreams.toByteArray(content.get(1).getStream());
+    }
+
+    /**
+     * Check that toString(), equals() and hashCode() of lazy parts don't read the content.
+     */
+    @Test
+    public void testLazyPartDataNotReadByToString() throws Exception {
+        MimeBodyPart text = spy(textPart("text"));
+        MimeBodyPart attachment = spy(attachment("a.gif", "image/gif", 100));
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        List<MailPartData> content = new MessageParser(message, Mail2BlogBaseConfiguration.builder()
+            .lazyContent(true)
+            .build()
+        ).getContent();
+
+        for (MailPartData part : content) {
+            assertNotNull(part.toString());
+            part.hashCode();
+            assertTrue(part.equals(part));
+        }
+
+        verify(text, never()).getInputStream();
+        verify(attachment, never()).getInputStream();
+    }
+
+    /**
+     * Check that attachments can be written to streams and channels in every mode
+     * and that the raw data decodes to the same bytes.
+     */
+    @Test
+    public void testTransferTo() throws Exception {
+        byte[] expected = ByteStreams.toByteArray(
+            new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder().build()).getContent().get(1).getStream()
+        );
+
+        Mail2BlogBaseConfiguration[] configurations = new Mail2BlogBaseConfiguration[]{
+            Mail2BlogBaseConfiguration.builder().build(),
+            Mail2BlogBaseConfiguration.builder().spillThresholdInBytes(1024).build(),
+            Mail2BlogBaseConfiguration.builder().lazyContent(true).build(),
+        };
+
+        for (Mail2BlogBaseConfiguration configuration : configurations) {
+            try (MailPartData attachment = new MessageParser(exampleMessage, configuration).getContent().get(1)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                assertEquals(expected.length, attachment.transferTo(output));
+                assertArrayEquals(expected, output.toByteArray());
+            }
+
+            try (MailPartData attachment = new MessageParser(exampleMessage, configuration).getContent().get(1)) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                assertEquals(expected.length, attachment.transferTo(Channels.newChannel(output)));
+                assertArrayEquals(expected, output.toByteArray());
+
+                assertEquals("base64", attachment.getTransferEncoding());
+                try (InputStream raw = attachment.getRawStream()) {
+                    assertArrayEquals(expected, ByteStreams.toByteArray(MimeUtility.decode(raw, attachment.getTransferEncoding())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that attachments are rejected from their headers before their data is decoded.
+     */
+    @Test
+    public void testRejectionsBeforeDecoding() throws Exception {
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart("text"));
+        multipart.addBodyPart(attachment("a.gif", "image/gif", 100));
+        multipart.addBodyPart(attachment("b.exe", "application/x-msdownload", 100));
+        multipart.addBodyPart(attachment("c.gif", "image/gif", 5000));
+        multipart.addBodyPart(attachment("d.gif", "image/gif", 100));
+
+        MimeMessage source = new MimeMessage((Session) null);
+        source.setContent(multipart);
+        source.saveChanges();
+
+        // Reparse the message, so that the parts have a declared size.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        source.writeTo(bytes);
+        MimeMessage message = new MimeMessage(null, new ByteArrayInputStream(bytes.toByteArray()));
+
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        MessageParser messageParser = new MessageParser(message, Mail2BlogBaseConfiguration.builder()
+            .maxAllowedAttachmentSizeInBytes(2000)
+            .maxAllowedNumberOfAttachments(1)
+            .metricsListener(metrics)
+            .build()
+        );
+        List<MailPartData> content = messageParser.getContent();
+
+        assertEquals(2, content.size());
+        assertEquals("a.gif", content.get(1).getAttachementData().getFilename());
+
+        List<AttachmentRejection> rejections = messageParser.getRejections();
+        assertEquals(3, rejections.size());
+        assertEquals("b.exe", rejections.get(0).getFilename());
+        assertEquals(AttachmentRejectionReasons.ForbiddenType, rejections.get(0).getReason());
+        assertEquals("c.gif", rejections.get(1).getFilename());
+        assertEquals(AttachmentRejectionReasons.TooLarge, rejections.get(1).getReason());
+        assertTrue(rejections.get(1).getDeclaredSize() > 2000);
+        assertEquals("d.gif", rejections.get(2).getFilename());
+        assertEquals(AttachmentRejectionReasons.TooMany, rejections.get(2).getReason());
+        assertEquals(Long.valueOf(3), metrics.counters.get(MetricNames.AttachmentsRejected));
+
+        // Only the text and the accepted attachment were decoded.
+        assertEquals(Long.valueOf("text".length() + 100), metrics.counters.get(MetricNames.BytesDecoded));
+    }
+
+    /**
+     * Check that attachments are rejected when every walk over the message gets new part objects,
+     * and that attachments dropped after the pre-scan don't count against the maximum number.
+     */
+    @Test
+    public void testRejectionsWithoutCachedMultiparts() throws Exception {
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart("text"));
+        multipart.addBodyPart(attachment("a.gif", "image/gif", 100));
+        multipart.addBodyPart(attachment("b.exe", "application/x-msdownload", 100));
+        multipart.addBodyPart(attachment("c.gif", "image/gif", 100));
+
+        MimeMessage source = new MimeMessage((Session) null);
+        source.setContent(multipart);
+        source.saveChanges();
+
+        // The first attachment can't be decoded, so it's only dropped when its data is read.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        source.writeTo(bytes);
+        String raw = new String(bytes.toByteArray(), StandardCharsets.US_ASCII)
+            .replaceFirst("Content-Transfer-Encoding: base64(\r\nContent-Disposition: attachment; filename=a.gif)", "Content-Transfer-Encoding: x-broken$1");
+        assertTrue(raw.contains("x-broken"));
+
+        // Like an IMAP message, return a new multipart every time.
+        MimeMessage message = new MimeMessage(null, new ByteArrayInputStream(raw.getBytes(StandardCharsets.US_ASCII))) {
+            @Override
+            public Object getContent() throws MessagingException {
+                return new MimeMultipart(new MimePartDataSource(this));
+            }
+        };
+
+        MessageParser messageParser = new MessageParser(message, Mail2BlogBaseConfiguration.builder()
+            .maxAllowedNumberOfAttachments(1)
+            .build()
+        );
+        List<MailPartData> content = messageParser.getContent();
+
+        assertEquals(2, content.size());
+        assertEquals("c.gif", content.get(1).getAttachementData().getFilename());
+        assertEquals(1, messageParser.getRejections().size());
+        assertEquals("b.exe", messageParser.getRejections().get(0).getFilename());
+        assertEquals(AttachmentRejectionReasons.ForbiddenType, messageParser.getRejections().get(0).getReason());
+    }
+
+    /**
+     * Check that an attachment without declared size is read at most one byte beyond the limit.
+     */
+    @Test
+    public void testMaxAttachmentSizeWithoutDeclaredSize() throws Exception {
+        MimeBodyPart attachment = spy(attachment("a.gif", "image/gif", 100000));
+        long[] bytesRead = new long[1];
+        InputStream data = new ByteArrayInputStream(new byte[100000]) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int count = super.read(b, off, len);
+                bytesRead[0] += Math.max(0, count);
+                return count;
+            }
+        };
+        doReturn(data).when(attachment).getInputStream();
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(textPart("text"));
+        multipart.addBodyPart(attachment);
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        MessageParser messageParser = new MessageParser(message, Mail2BlogBaseConfiguration.builder()
+            .maxAllowedAttachmentSizeInBytes(1000)
+            .build()
+        );
+
+        assertEquals(1, messageParser.getContent().size());
+        assertEquals(1001, bytesRead[0]);
+        assertEquals(1, messageParser.getRejections().size());
+        assertEquals(AttachmentRejectionReasons.TooLarge, messageParser.getRejections().get(0).getReason());
+        assertEquals(-1, messageParser.getRejections().get(0).getDeclaredSize());
+    }
+
+    /**
+     * Check that a message that exceeds one of the per message limits fails as a whole.
+     */
+    @Test
+    public void testMessageLimits() throws Exception {
+        assertLimitExceeded(exampleMessage, Mail2BlogBaseConfiguration.builder().maxDecodedBytesPerMessage(1000));
+        assertLimitExceeded(exampleMessage, Mail2BlogBaseConfiguration.builder().decodeDeadlineInMilliseconds(0));
+        assertEquals(2, new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder()
+            .maxDecodedBytesPerMessage(10000)
+            .decodeDeadlineInMilliseconds(60000)
+            .build()
+        ).getContent().size());
+
+        // 5 levels of nested multiparts.
+        MimeMultipart nested = new MimeMultipart("mixed");
+        nested.addBodyPart(textPart("deep"));
+        for (int i = 0; i < 4; i++) {
+            MimeBodyPart wrapper = new MimeBodyPart();
+            wrapper.setContent(nested);
+            nested = new MimeMultipart("mixed");
+            nested.addBodyPart(wrapper);
+        }
+        MimeMessage deep = new MimeMessage((Session) null);
+        deep.setContent(nested);
+        deep.saveChanges();
+
+        assertLimitExceeded(deep, Mail2BlogBaseConfiguration.builder().maxMimeDepth(4));
+        assertEquals(1, new MessageParser(deep, Mail2BlogBaseConfiguration.builder().maxMimeDepth(5).build()).getContent().size());
+
+        MimeMultipart wide = new MimeMultipart("mixed");
+        for (int i = 0; i < 10; i++) {
+            wide.addBodyPart(textPart("part " + i));
+        }
+        MimeMessage many = new MimeMessage((Session) null);
+        many.setContent(wide);
+        many.saveChanges();
+
+        assertLimitExceeded(many, Mail2BlogBaseConfiguration.builder().maxPartsPerMessage(9));
+        assertEquals(10, new MessageParser(many, Mail2BlogBaseConfiguration.builder().maxPartsPerMessage(10).build()).getContent().size());
+
+        // Parts are counted once, even if every walk over the message gets a new multipart, like for IMAP messages.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        many.writeTo(bytes);
+        MimeMessage uncached = new MimeMessage(null, new ByteArrayInputStream(bytes.toByteArray())) {
+            @Override
+            public Object getContent() throws MessagingException {
+                return new MimeMultipart(new MimePartDataSource(this));
+            }
+        };
+        assertEquals(10, new MessageParser(uncached, Mail2BlogBaseConfiguration.builder().maxPartsPerMessage(10).build()).getContent().size());
+    }
+
+    /**
+     * Check that in multipart/alternative only the preferred body part is decoded.
+     */
+    @Test
+    public void testAlternativeChosenBeforeDecoding() throws Exception {
+        MimeBodyPart text = spy(new MimeBodyPart());
+        text.setText("plain text", "utf-8");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent("<p>html</p>", "text/html; charset=utf-8");
+
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(text);
+        alternative.addBodyPart(html);
+
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(alternative);
+        message.saveChanges();
+
+        List<MailPartData> content = new MessageParser(message, Mail2BlogBaseConfiguration.builder().build()).getContent();
+
+        assertEquals(1, content.size());
+        assertEquals("text/html", content.get(0).getContentType());
+        assertEquals("<p>html</p>\n", content.get(0).getHtml());
+        verify(text, never()).getContent();
+        verify(text, never()).getInputStream();
+    }
+
+    /**
+     * Check that text and html bodies are decoded like they were decoded line by line with escapeHtml4.
+     */
+    @Test
+    public void testDecodeContentLikeLineByLine() throws Exception {
+        Random random = new Random(1234);
+        String alphabet = "ab <>&\"'\n\r\t\u00e9\u20ac\u2666\ud83d\ude00";
+
+        for (int round = 0; round < 200; round++) {
+            StringBuilder body = new StringBuilder();
+            int length = random.nextInt(round < 100 ? 20 : 5000);
+            for (int i = 0; i < length; i++) {
+                body.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            for (String mimeType : new String[]{"text/plain", "text/html"}) {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setContent(body.toString(), mimeType + "; charset=utf-8");
+
+                MimeMessage message = new MimeMessage((Session) null);
+                message.setContent(new MimeMultipart(part));
+                message.saveChanges();
+
+                List<MailPartData> content = new MessageParser(message, Mail2BlogBaseConfiguration.builder().build()).getContent();
+
+                assertEquals(decodeLineByLine(part, mimeType), content.get(0).getHtml());
+            }
+        }
+    }
+
+    /**
+     * Check that html sanitized into an Appendable is the same as the sanitized String, also in lazy mode.
+     */
+    @Test
+    public void testWriteSanitizedHtml() throws Exception {
+        PolicyFactory policyFactory = HtmlFilterFactory.makeHtmlFilter(Mail2BlogBaseConfiguration.builder().build());
+        MailPartData eager = new MessageParser(exampleMessage, Mail2BlogBaseConfiguration.builder().build()).getContent().get(0);
+        MailPartData lazy = new MessageParser(
+            exampleMessage,
+            Mail2BlogBaseConfiguration.builder().lazyContent(true).build()
+        ).getContent().get(0);
+
+        StringBuilder eagerOutput = new StringBuilder();
+        eager.writeSanitizedHtml(policyFactory, eagerOutput);
+        StringBuilder lazyOutput = new StringBuilder();
+        lazy.writeSanitizedHtml(policyFactory, lazyOutput);
+
+        assertEquals(policyFactory.sanitize(eager.getHtml()), eagerOutput.toString());
+        assertEquals(eagerOutput.toString(), lazyOutput.toString());
+
+        // Check that the listener is notified about removed tags.
+        PolicyFactory textOnly = HtmlFilterFactory.makeHtmlFilter(Mail2BlogBaseConfiguration.builder()
+            .htmlFilterFormatting(false)
+            .htmlFilterBlocks(false)
+            .htmlFilterImages(false)
+            .htmlFilterLinks(false)
+            .htmlFilterStyles(false)
+            .htmlFilterTables(false)
+            .build());
+        List<String> removed = new ArrayList<String>();
+        StringBuilder textOutput = new StringBuilder();
+        eager.writeSanitizedHtml(textOnly, textOutput, new HtmlChangeListener<List<String>>() {
+            @Override
+            public void discardedTag(List<String> context, String elementName) {
+                context.add(elementName);
+            }
+
+            @Override
+            public void discardedAttributes(List<String> context, String tagName, String... attributeNames) {
+            }
+        }, removed);
+
+        assertEquals(textOnly.sanitize(eager.getHtml()), textOutput.toString());
+        assertTrue("Expected the p tag to be removed", removed.contains("p"));
+    }
+
+    private static String decodeLineByLine(MimeBodyPart part, String mimeType) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(part.getInputStream(), StandardCharsets.UTF_8));
+        StringBuilder html = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (mimeType.equals("text/plain")) {
+                html.append(StringEscapeUtils.escapeHtml4(line)).append("<br />");
+            } else {
+                html.append(line);
+            }
+            html.append("\n");
+        }
+        return html.toString();
+    }
 
+    private static void assertLimitExceeded(Message message, Mail2BlogBaseConfiguration.Mail2BlogBaseConfigurationBuilder builder)
+    throws Exception
+    {
+        try {
+            new MessageParser(message, builder.build()).getContent();
+            fail("Expected the message to exceed a limit");
+        } catch (MessageLimitExceededException e) {
+            // Expected.
+        }
+    }
+
+    private static MimeBodyPart textPart(String text) throws Exception {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, "utf-8");
+        return part;
+    }
+
+    private static MimeBodyPart attachment(String filename, String mimeType, int size) throws Exception {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[size], mimeType)));
+        part.setFileName(filename);
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        return part;
+    }
+}
@@ -0,0 +1,24 @@
+package ut.de.dm.mail2blog.base;
+
+import de.dm.mail2blog.base.MetricsListener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the number of timings and the sum of the counters it receives.
+ */
+class RecordingMetricsListener implements MetricsListener {
+    final Map<String, Long> timings = new ConcurrentHashMap<String, Long>();
+    final Map<String, Long> counters = new ConcurrentHashMap<String, Long>();
+
+    @Override
+    public void timing(String stage, long nanos) {
+        timings.merge(stage, 1L, Long::sum);
+    }
+
+    @Override
+    public void count(String counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+}
@@ -9,13 +9,29 @@ import org.mockito.junit.MockitoJUnitRunner;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -123,6 +139,152 @@ public class SpaceExtractionTest {
         Message message = mock(Message.class);
     }
 
+    /**
+     * Check that all candidate spaces, including captured ones, are validated with one bulk call.
+     */
+    @Test
+    public void testBulkValidation() throws Exception {
+        List<Collection<String>> bulkCalls = new ArrayList<Collection<String>>();
+        SpaceExtractor extractor = new SpaceExtractor(new ISpaceKeyValidator() {
+            @Override
+            public boolean spaceExists(String spaceKey) {
+                throw new IllegalStateException("expected a bulk call");
+            }
+
+            @Override
+            public Map<String, Boolean> spacesExist(Collection<String> spaceKeys) {
+                bulkCalls.add(new ArrayList<String>(spaceKeys));
+                Map<String, Boolean> result = new HashMap<String, Boolean>();
+                for (String spaceKey : spaceKeys) {
+                    result.put(spaceKey, !spaceKey.equals("missing"));
+                }
+                return result;
+            }
+        });
+
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{
+                SpaceRule.builder().field("from").operator("end").value("@example.org").action("copy").space("lyon").build(),
+                SpaceRule.builder().field("subject").operator("regexp").value("[0-9]+").action("copy").space(SpaceRuleSpaces.CapturingGroup0).build(),
+                SpaceRule.builder().field("subject").operator("contains").value("test").action("copy").space("missing").build(),
+            })
+            .defaultSpace("defaultSpace")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getFrom()).thenReturn(new Address[] { new InternetAddress("alice@example.org") });
+        when(message.getSubject()).thenReturn("test123");
+
+        List<SpaceInfo> spaceInfos = extractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+        assertEquals(1, bulkCalls.size());
+        assertEquals(Arrays.asList("lyon", "123", "missing", "defaultSpace"), bulkCalls.get(0));
+        assertEquals(3, spaceInfos.size());
+        assertEquals("lyon", spaceInfos.get(0).getSpaceKey());
+        assertEquals("123", spaceInfos.get(1).getSpaceKey());
+        assertEquals("defaultSpace", spaceInfos.get(2).getSpaceKey());
+    }
+
+    /**
+     * Check that every header is read once per message, no matter how many rules use it.
+     */
+    @Test
+    public void testHeadersReadOnce() throws Exception {
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{
+                SpaceRule.builder().field("to").operator("end").value("@example.org").action("copy").space("lyon").build(),
+                SpaceRule.builder().field("to/cc").operator("contains").value("bob").action("copy").space("paris").build(),
+                SpaceRule.builder().field("to").operator("regexp").value("^([a-z]+)@").action("copy").space(SpaceRuleSpaces.CapturingGroup1).build(),
+                SpaceRule.builder().field("to/cc").operator("regexp").value("^CAROL").action("copy").space("nice").build(),
+            })
+            .defaultSpace("defaultSpace")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getRecipients(Message.RecipientType.TO)).thenReturn(new Address[] { new InternetAddress("Alice@example.org") });
+        when(message.getRecipients(Message.RecipientType.CC)).thenReturn(new Address[] { new InternetAddress("carol@example.com") });
+
+        List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+        assertEquals(4, spaceInfos.size());
+        assertEquals("lyon", spaceInfos.get(0).getSpaceKey());
+        assertEquals("Alice", spaceInfos.get(1).getSpaceKey());
+        assertEquals("nice", spaceInfos.get(2).getSpaceKey());
+        verify(message, times(1)).getRecipients(Message.RecipientType.TO);
+        verify(message, times(1)).getRecipients(Message.RecipientType.CC);
+    }
+
+    /**
+     * Test that a move rule whose regexp matched ends the evaluation, even if it has no capturing group 1.
+     */
+    @Test
+    public void testMoveRuleWithoutCapturingGroup() throws Exception {
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{
+                SpaceRule.builder().field("subject").operator("regexp").value("^hello").action("move").space(SpaceRuleSpaces.CapturingGroup1).build(),
+                SpaceRule.builder().field("subject").operator("regexp").value("^hello").action("copy").space("other").build(),
+            })
+            .defaultSpace("defaultSpace")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getSubject()).thenReturn("hello world");
+
+        List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+        assertTrue(spaceInfos.isEmpty());
+    }
+
+    /**
+     * Test that a runtime error while reading a field only skips the rules of that field.
+     */
+    @Test
+    public void testFieldRuntimeError() throws Exception {
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{
+                SpaceRule.builder().field("to").operator("end").value("@example.org").action("copy").space("lyon").build(),
+                SpaceRule.builder().field("cc").operator("end").value("@example.com").action("copy").space("nice").build(),
+            })
+            .defaultSpace("defaultSpace")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getRecipients(Message.RecipientType.TO)).thenThrow(new IllegalStateException("broken header"));
+        when(message.getRecipients(Message.RecipientType.CC)).thenReturn(new Address[] { new InternetAddress("carol@example.com") });
+
+        List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+        assertEquals(2, spaceInfos.size());
+        assertEquals("nice", spaceInfos.get(0).getSpaceKey());
+        assertEquals("defaultSpace", spaceInfos.get(1).getSpaceKey());
+    }
+
+    /**
+     * Check that routing from the headers of a raw mail gives the same spaces as routing the parsed message.
+     */
+    @Test
+    public void testRouteFromHeaders() throws Exception {
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{
+                SpaceRule.builder().field("from").operator("is").value("alice@example.org").action("copy").space("lyon").build(),
+                SpaceRule.builder().field("to").operator("regexp").value("^([a-z]+)@").action("copy").space(SpaceRuleSpaces.CapturingGroup1).build(),
+                SpaceRule.builder().field("subject").operator("regexp").value("^h(.*)").action("copy").space(SpaceRuleSpaces.CapturingGroup1).build(),
+            })
+            .defaultSpace("defaultSpace")
+            .build();
+
+        for (String mail : new String[]{"mailbox/Hello.eml", "mailbox/Test.eml"}) {
+            Message message = new MimeMessage(null, getClass().getClassLoader().getResourceAsStream(mail));
+            List<SpaceInfo> expected = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+
+            InputStream raw = getClass().getClassLoader().getResourceAsStream(mail);
+            List<SpaceInfo> actual = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, RoutingContext.fromHeaders(raw));
+
+            assertEquals(expected, actual);
+            assertTrue("Expected the body to be left unread", raw.read() != -1);
+        }
+    }
+
     /**
      * Make sure that an inperformant regexp can't crash the entire application.
      */
@@ -142,8 +304,11 @@ public class SpaceExtractionTest {
         Message message = mock(Message.class);
         when(message.getSubject()).thenReturn(testString);
 
-        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration
-            = Mail2BlogBaseConfiguration.builder().spaceRules(new SpaceRule[]{spaceRule}).build();
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{spaceRule})
+            .metricsListener(metrics)
+            .build();
 
         boolean caughtException = false;
         try {
@@ -164,5 +329,292 @@ public class SpaceExtractionTest {
         assertTrue(caughtException);
 
         List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+        assertEquals(Long.valueOf(1), metrics.counters.get(MetricNames.RegexTimeouts));
+        assertEquals(Long.valueOf(1), metrics.timings.get(MetricNames.HeaderParsing));
+        assertEquals(Long.valueOf(1), metrics.timings.get(MetricNames.ValidatorLookup));
+    }
+
+    /**
+     * Check that a regexp rule is quarantined after repeated timeouts and skipped until it's released.
+     */
+    @Test
+    public void testRegexpQuarantine() throws Exception {
+        SpaceRule slowRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("(x+x+)+y")
+            .action("copy")
+            .space("slow")
+            .build();
+
+        SpaceRule fastRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("x+")
+            .action("copy")
+            .space("fast")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getSubject()).thenReturn(String.join("", Collections.nCopies(1000, "x")));
+
+        RecordingMetricsListener metrics = new RecordingMetricsListener();
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{slowRule, fastRule})
+            .defaultSpace("default")
+            .regexpQuarantineThreshold(2)
+            .metricsListener(metrics)
+            .build();
+
+        RegexExecutor regexExecutor = RegexExecutor.builder().timeoutInMilliseconds(20).build();
+        SpaceExtractor extractor = new SpaceExtractor(spaceKey -> true, regexExecutor);
+
+        try {
+            SpaceRuleStats stats = mail2BlogBaseConfiguration.getCompiledSpaceRules().getStats(0);
+            assertEquals(2, mail2BlogBaseConfiguration.getCompiledSpaceRules().getRegexpRuleStats().size());
+            assertEquals(slowRule, stats.getRule());
+
+            for (int i = 0; i < 4; i++) {
+                List<SpaceInfo> spaces = extractor.getSpaces(mail2BlogBaseConfiguration, message);
+                assertEquals(2, spaces.size());
+                assertEquals("fast", spaces.get(0).getSpaceKey());
+                assertEquals("default", spaces.get(1).getSpaceKey());
+            }
+
+            assertEquals(2, stats.getTimeouts());
+            assertEquals(2, stats.getEvaluations());
+            assertEquals(2, stats.getSkipped());
+            assertEquals(1, stats.getQuarantines());
+            assertTrue(stats.isQuarantined());
+            assertTrue(stats.getWallTimeInNanos() > 0);
+            assertEquals(Long.valueOf(2), metrics.counters.get(MetricNames.RegexTimeouts));
+            assertEquals(Long.valueOf(2), metrics.counters.get(MetricNames.RulesQuarantined));
+
+            SpaceRuleStats fastStats = mail2BlogBaseConfiguration.getCompiledSpaceRules().getStats(1);
+            assertEquals(4, fastStats.getEvaluations());
+            assertEquals(0, fastStats.getTimeouts());
+            assertFalse(fastStats.isQuarantined());
+
+            // The quarantine ends with the cool-down.
+            assertFalse(stats.isQuarantined(stats.getQuarantinedUntil()));
+
+            stats.release();
+            assertFalse(stats.isQuarantined());
+            extractor.getSpaces(mail2BlogBaseConfiguration, message);
+            assertEquals(3, stats.getTimeouts());
+            assertFalse(stats.isQuarantined());
+        } finally {
+            regexExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Check that a cheap regexp isn't quarantined, when it has to wait for a saturated executor.
+     */
+    @Test
+    public void testNoQuarantineWhenExecutorSaturated() throws Exception {
+        SpaceRule fastRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("x+")
+            .action("copy")
+            .space("fast")
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getSubject()).thenReturn("xxx");
+
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{fastRule})
+            .defaultSpace("default")
+            .regexpQuarantineThreshold(1)
+            .build();
+
+        RegexExecutor regexExecutor = RegexExecutor.builder().parallelism(1).timeoutInMilliseconds(50).build();
+        SpaceExtractor extractor = new SpaceExtractor(spaceKey -> true, regexExecutor);
+
+        // Occupy the only thread for longer than the timeout, ignoring the interrupt.
+        CountDownLatch occupied = new CountDownLatch(1);
+        Thread occupier = new Thread(() -> {
+            try {
+                regexExecutor.call(() -> {
+                    occupied.countDown();
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+                    while (System.nanoTime() < end) {
+                        // Busy.
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                // Expected to time out.
+            }
+        });
+
+        try {
+            occupier.start();
+            occupied.await();
+
+            List<SpaceInfo> spaces = extractor.getSpaces(mail2BlogBaseConfiguration, message);
+            assertEquals("fast", spaces.get(0).getSpaceKey());
+
+            SpaceRuleStats stats = mail2BlogBaseConfiguration.getCompiledSpaceRules().getStats(0);
+            assertEquals(0, stats.getTimeouts());
+            assertFalse(stats.isQuarantined());
+        } finally {
+            occupier.join();
+            regexExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Check that regexps are evaluated on an injected executor and that it can be shut down.
+     */
+    @Test
+    public void testInjectedRegexExecutor() throws Exception {
+        SpaceRule spaceRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("[0-9]+")
+            .action("copy")
+            .space(SpaceRuleSpaces.CapturingGroup0)
+            .build();
+
+        RegexExecutor regexExecutor = RegexExecutor.builder().parallelism(1).queueLimit(1).build();
+        SpaceExtractor extractor = new SpaceExtractor(spaceKey -> true, regexExecutor);
+
+        assertTrue(extractor.evalCondition(spaceRule, "test123"));
+        assertFalse(extractor.evalCondition(spaceRule, "test"));
+        assertEquals("123", extractor.extractSpaceKey(spaceRule, "test123"));
+
+        regexExecutor.close();
+
+        boolean caughtException = false;
+        try {
+            extractor.evalCondition(spaceRule, "test123");
+        } catch (Exception e) {
+            caughtException = true;
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertTrue(caughtException);
+    }
+
+    /**
+     * Check that the time an evaluation waits for a thread doesn't count against its timeout.
+     */
+    @Test
+    public void testQueuedEvaluationsNotTimedOut() throws Exception {
+        RegexExecutor regexExecutor = RegexExecutor.builder().parallelism(1).queueLimit(10).timeoutInMilliseconds(100).build();
+
+        try {
+            // Every evaluation takes 60ms, so the last one waits longer than the timeout for the thread.
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            ExecutorService callers = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < 4; i++) {
+                results.add(callers.submit(() -> regexExecutor.call(() -> {
+                    Thread.sleep(60);
+                    return "done";
+                })));
+            }
+
+            for (Future<String> result : results) {
+                assertEquals("done", result.get());
+            }
+            callers.shutdown();
+        } finally {
+            regexExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Check that regexps are evaluated on virtual threads if available, or on the thread pool otherwise.
+     */
+    @Test
+    public void testRegexExecutorOnVirtualThreads() throws Exception {
+        SpaceRule spaceRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("[0-9]+")
+            .action("copy")
+            .space(SpaceRuleSpaces.CapturingGroup0)
+            .build();
+
+        RegexExecutor regexExecutor = RegexExecutor.builder().virtualThreads(true).build();
+        SpaceExtractor extractor = new SpaceExtractor(spaceKey -> true, regexExecutor);
+
+        assertTrue(extractor.evalCondition(spaceRule, "test123"));
+        assertEquals("123", extractor.extractSpaceKey(spaceRule, "test123"));
+
+        regexExecutor.close();
+
+        boolean caughtException = false;
+        try {
+            extractor.evalCondition(spaceRule, "test123");
+        } catch (Exception e) {
+            caughtException = true;
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertTrue(caughtException);
+    }
+
+    /**
+     * Check that the regexps of a configuration are only compiled once.
+     */
+    @Test
+    public void testPrecompiledRegexp() throws Exception {
+        SpaceRule spaceRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("project-([a-z]+)")
+            .action("copy")
+            .space(SpaceRuleSpaces.CapturingGroup1)
+            .build();
+
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{spaceRule})
+            .defaultSpace("defaultSpace")
+            .build();
+
+        CompiledSpaceRuleSet compiledSpaceRules = mail2BlogBaseConfiguration.getCompiledSpaceRules();
+        assertTrue(compiledSpaceRules == mail2BlogBaseConfiguration.getCompiledSpaceRules());
+        assertTrue(compiledSpaceRules.getRules()[0].getPattern() == CompiledSpaceRule.of(spaceRule).getPattern());
+
+        Message message = mock(Message.class);
+        when(message.getSubject()).thenReturn("Report for Project-Alpha");
+
+        List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+        assertEquals(2, spaceInfos.size());
+        assertEquals("Alpha", spaceInfos.get(0).getSpaceKey());
+        assertEquals("defaultSpace", spaceInfos.get(1).getSpaceKey());
+    }
+
+    /**
+     * Check that the linear regexp engine evaluates a regexp, that would need a timeout, inline.
+     */
+    @Test(timeout = 5000)
+    public void testLinearRegexpEngine() throws Exception {
+        String testString = String.join("", Collections.nCopies(1000, "x")) + "y";
+
+        SpaceRule spaceRule = SpaceRule.builder()
+            .field("subject")
+            .operator("regexp")
+            .value("(x+x+)+y")
+            .action("copy")
+            .space(SpaceRuleSpaces.CapturingGroup0)
+            .build();
+
+        Message message = mock(Message.class);
+        when(message.getSubject()).thenReturn(testString);
+
+        Mail2BlogBaseConfiguration mail2BlogBaseConfiguration = Mail2BlogBaseConfiguration.builder()
+            .spaceRules(new SpaceRule[]{spaceRule})
+            .defaultSpace("defaultSpace")
+            .linearRegexpEngine(true)
+            .build();
+
+        assertTrue(mail2BlogBaseConfiguration.getCompiledSpaceRules().getRules()[0].getLinearRegexp() != null);
+
+        List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mail2BlogBaseConfiguration, message);
+        assertEquals(2, spaceInfos.size());
+        assertEquals(testString, spaceInfos.get(0).getSpaceKey());
     }
 }
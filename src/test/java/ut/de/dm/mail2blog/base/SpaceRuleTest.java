@@ -1,6 +1,8 @@
 package ut.de.dm.mail2blog.base;
 
 import de.dm.mail2blog.base.ISpaceKeyValidator;
+import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
+import de.dm.mail2blog.base.RegexpEngines;
 import de.dm.mail2blog.base.SpaceRule;
 import de.dm.mail2blog.base.SpaceRuleSpaces;
 import de.dm.mail2blog.base.SpaceRuleValidationException;
@@ -8,7 +10,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -51,6 +55,25 @@ public class SpaceRuleTest {
         assertSpaceRule("from", "is", "alpha", "copy", VALID_SPACE_KEY, "bogus", false); // Invalid contentType
     }
 
+    /**
+     * Check that the engine that evaluates a regexp is reported according to the configuration.
+     */
+    @Test
+    public void testRegexpEngine() throws Exception {
+        SpaceRule.SpaceRuleBuilder builder = SpaceRule.builder()
+            .field("from")
+            .action("copy")
+            .space(VALID_SPACE_KEY)
+            .contentType("blog");
+        Mail2BlogBaseConfiguration linear = Mail2BlogBaseConfiguration.builder().linearRegexpEngine(true).build();
+        Mail2BlogBaseConfiguration guarded = Mail2BlogBaseConfiguration.builder().build();
+
+        assertNull(builder.operator("is").value("alpha").build().regexpEngine(linear));
+        assertEquals(RegexpEngines.Linear, builder.operator("regexp").value("^echo ([0-9]*)").build().regexpEngine(linear));
+        assertEquals(RegexpEngines.Guarded, builder.operator("regexp").value("^echo ([0-9]*)").build().regexpEngine(guarded));
+        assertEquals(RegexpEngines.Guarded, builder.operator("regexp").value("(echo)\\1").build().regexpEngine(linear));
+    }
+
     /**
      * Check that space rules are validated properly.
      */